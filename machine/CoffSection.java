@@ -199,6 +199,8 @@ public class CoffSection
 			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+		Machine.processor().invalidateDecodedPage(ppn);
 	}
 
 	/** The COFF object to which this section belongs. */
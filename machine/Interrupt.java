@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[16];
 	}
 
 	/**
@@ -119,16 +117,119 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Fast-forward the simulated time while the CPU is idle. Called by the
+	 * idle thread, when every other thread is blocked, before it yields. It
+	 * would otherwise spend one kernel tick per yield until the earliest
+	 * pending interrupt falls due; this advances the clock by all but the
+	 * last of those ticks at once, so the interrupt still occurs on the same
+	 * tick, and the kernel and total tick counts come out the same.
+	 * 
+	 * <p>
+	 * Does nothing if no interrupt is pending, or if the next one falls due
+	 * on the next tick.
+	 */
+	public void idle() {
+		if (numPending == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		long ticksToDue = nextDue - stats.totalTicks;
+		long idleTicks = ((ticksToDue + Stats.KernelTick - 1) / Stats.KernelTick - 1)
+				* Stats.KernelTick;
+		if (idleTicks <= 0)
+			return;
+
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "Idle until time = "
+					+ (stats.totalTicks + idleTicks));
+
+		stats.kernelTicks += idleTicks;
+		stats.totalTicks += idleTicks;
+		stats.idleTicksSkipped += idleTicks;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		PendingInterrupt toOccur = freeList;
+		if (toOccur != null)
+			freeList = toOccur.nextFree;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+		toOccur.nextFree = null;
+
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "Scheduling the " + type
+					+ " interrupt handler at time = " + time);
+
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, numPending * 2);
+
+		siftUp(numPending++, toOccur);
+		nextDue = pending[0].time;
+	}
+
+	/**
+	 * Place an interrupt in the heap, starting at a free slot and moving it
+	 * towards the root past every interrupt that occurs after it.
+	 */
+	private void siftUp(int slot, PendingInterrupt toOccur) {
+		while (slot > 0) {
+			int parent = (slot - 1) >>> 1;
+			if (!toOccur.before(pending[parent]))
+				break;
+
+			pending[slot] = pending[parent];
+			slot = parent;
+		}
+
+		pending[slot] = toOccur;
+	}
+
+	/**
+	 * Place an interrupt in the heap, starting at a free slot and moving it
+	 * away from the root past every interrupt that occurs before it.
+	 */
+	private void siftDown(int slot, PendingInterrupt toOccur) {
+		int half = numPending >>> 1;
+
+		while (slot < half) {
+			int child = 2 * slot + 1;
+			if (child + 1 < numPending && pending[child + 1].before(pending[child]))
+				child++;
+			if (!pending[child].before(toOccur))
+				break;
+
+			pending[slot] = pending[child];
+			slot = child;
+		}
 
-		pending.add(toOccur);
+		pending[slot] = toOccur;
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap and update
+	 * <tt>nextDue</tt>.
+	 */
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt first = pending[0];
+
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+		if (numPending > 0)
+			siftDown(0, last);
+
+		nextDue = (numPending > 0) ? pending[0].time : Long.MAX_VALUE;
+		return first;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -143,46 +244,87 @@ public final class Interrupt {
 			stats.totalTicks += Stats.UserTick;
 		}
 
-		if (Lib.test(dbgInt))
+		if (traceInterrupts)
 			System.out.println("== Tick " + stats.totalTicks + " ==");
+		// nearly every tick finds nothing due
+		else if (stats.totalTicks < nextDue) {
+			enabled = true;
+			return;
+		}
 
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	private void tickUser(int numInstructions) {
+		Lib.assertTrue(numInstructions > 0);
+
+		Stats stats = privilege.stats;
+
+		long ticks = (long) numInstructions * Stats.UserTick;
+		stats.userTicks += ticks;
+		stats.totalTicks += ticks;
+
+		if (traceInterrupts)
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+		else if (stats.totalTicks < nextDue) {
+			enabled = true;
+			return;
+		}
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private long userTicksUntilDue() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		long ticks = nextDue - privilege.stats.totalTicks;
+
+		// round up, so the instruction that reaches the due time is included
+		return Math.max(1, (ticks + Stats.UserTick - 1) / Stats.UserTick);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
 		Lib.assertTrue(disabled());
 
-		if (Lib.test(dbgInt))
+		if (traceInterrupts)
 			print();
 
-		if (pending.isEmpty())
+		if (nextDue > time)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
-			return;
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+		while (nextDue <= time) {
+			PendingInterrupt next = removeFirst();
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
-
-			Lib.assertTrue(next.time <= time);
+			// recycle the event before running the handler, which may well
+			// schedule the next one
+			String type = next.type;
+			Runnable handler = next.handler;
+			next.type = null;
+			next.handler = null;
+			next.nextFree = freeList;
+			freeList = next;
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (traceInterrupts)
+				Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
-		Lib.debug(dbgInt, "  (end of list)");
+		if (traceInterrupts)
+			Lib.debug(dbgInt, "  (end of list)");
 	}
 
 	private void print() {
@@ -190,8 +332,10 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (PendingInterrupt toOccur : sorted) {
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,25 +343,23 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * A scheduled interrupt. Interrupts due at the same time occur in the
+	 * order they were scheduled. Once an interrupt has occurred, its object
+	 * goes on the free list to be reused by a later <tt>schedule()</tt>.
+	 */
+	private static final class PendingInterrupt implements
+			Comparable<PendingInterrupt> {
+		/** Test whether this interrupt occurs before another one. */
+		boolean before(PendingInterrupt toOccur) {
+			return time < toOccur.time
+					|| (time == toOccur.time && id < toOccur.id);
 		}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
-
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
+		public int compareTo(PendingInterrupt toOccur) {
+			if (before(toOccur))
 				return -1;
-			else if (id > toOccur.id)
+			else if (toOccur.before(this))
 				return 1;
 			else
 				return 0;
@@ -229,7 +371,9 @@ public final class Interrupt {
 
 		Runnable handler;
 
-		private long id;
+		long id;
+
+		PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,10 +382,33 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * The pending interrupts, as a binary heap ordered by time and then by
+	 * the order in which they were scheduled.
+	 */
+	private PendingInterrupt[] pending;
+
+	private int numPending = 0;
+
+	/**
+	 * The time of the earliest pending interrupt, or <tt>Long.MAX_VALUE</tt>
+	 * if none is pending, so that a tick with nothing due costs one
+	 * comparison.
+	 */
+	private long nextDue = Long.MAX_VALUE;
+
+	/** Interrupt objects that have occurred and can be reused. */
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
+	/**
+	 * <tt>true</tt> if interrupt tracing is on. Resolved once when the
+	 * interrupt controller is created, so that the test on every tick is free
+	 * when tracing is off.
+	 */
+	private static final boolean traceInterrupts = Lib.test(dbgInt);
+
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
 		public void schedule(long when, String type, Runnable handler) {
 			Interrupt.this.schedule(when, type, handler);
@@ -250,5 +417,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tickUser(int numInstructions) {
+			Interrupt.this.tickUser(numInstructions);
+		}
+
+		public long userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
 	}
 }
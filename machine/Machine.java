@@ -198,8 +198,13 @@ public final class Machine {
 		if (Config.getBoolean("Machine.console"))
 			console = new StandardConsole(privilege);
 
-		if (Config.getBoolean("Machine.stubFileSystem"))
-			stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		if (Config.getBoolean("Machine.stubFileSystem")) {
+			if (Config.getString("Machine.fileSystemImpl", "stub").equals(
+					"mapped"))
+				stubFileSystem = new MappedFileSystem(privilege, testDirectory);
+			else
+				stubFileSystem = new StubFileSystem(privilege, testDirectory);
+		}
 
 		if (Config.getBoolean("Machine.networkLink"))
 			networkLink = new NetworkLink(privilege);
@@ -382,6 +387,20 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Count events that only the kernel sees, such as file cache hits. This
+	 * is the only way the kernel can change the runtime statistics, and it
+	 * can only add to these counters.
+	 * 
+	 * @param event the kind of event.
+	 * @param count the number of events.
+	 */
+	public static void countEvent(Stats.KernelEvent event, int count) {
+		Lib.assertTrue(count >= 0);
+
+		stats.count(event, count);
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
@@ -0,0 +1,358 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A stub file system that accesses host files through memory mappings, so
+ * that reads and writes are buffer copies rather than host system calls. It
+ * behaves exactly like <tt>StubFileSystem</tt>, including its simulated
+ * delays and its limit on open files; only the host-side cost differs.
+ *
+ * <p>
+ * All open files with the same name share one mapping. A file is mapped
+ * read-only, at its real length, until it is first written; only then is it
+ * mapped for writing. The mapping grows, by at least doubling, when a write
+ * extends the file past it. The host file of a written file is cut back to
+ * the file's real length when its last open file is closed and when Nachos
+ * exits.
+ *
+ * <p>
+ * Select it by setting <tt>Machine.fileSystemImpl</tt> to <tt>mapped</tt>.
+ */
+public class MappedFileSystem extends StubFileSystem {
+	/**
+	 * Allocate a new memory-mapped stub file system.
+	 *
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param directory the root directory of the stub file system.
+	 */
+	public MappedFileSystem(Privilege privilege, File directory) {
+		super(privilege, directory);
+
+		privilege.addExitNotificationHandler(new Runnable() {
+			public void run() {
+				MappedFileSystem.this.privilege.doPrivileged(new Runnable() {
+					public void run() {
+						while (!mappedFiles.isEmpty())
+							mappedFiles.get(0).release();
+					}
+				});
+			}
+		});
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		if (!checkName(name))
+			return null;
+
+		delay();
+
+		if (openCount == maxOpenFiles)
+			return null;
+
+		MappedFile file = filesByName.get(name);
+
+		if (file == null) {
+			file = new MappedFile(name, new File(directory, name));
+			if (!file.open(truncate))
+				return null;
+
+			filesByName.put(name, file);
+		}
+		else if (truncate) {
+			if (!file.truncate())
+				return null;
+		}
+
+		file.references++;
+		openCount++;
+
+		return new MappedOpenFile(name, file);
+	}
+
+	public boolean remove(String name) {
+		if (!super.remove(name))
+			return false;
+
+		// open files keep using the removed file, but nothing they do reaches
+		// the host any more; new opens start afresh
+		MappedFile file = filesByName.remove(name);
+		if (file != null)
+			file.removed = true;
+
+		return true;
+	}
+
+	/**
+	 * The host file behind every open file with a particular name.
+	 */
+	private class MappedFile {
+		MappedFile(String name, File f) {
+			this.name = name;
+			this.f = f;
+		}
+
+		/**
+		 * Open and map the host file. Returns <tt>false</tt> if the file does
+		 * not exist and <i>create</i> is <tt>false</tt>, or on a host error.
+		 */
+		boolean open(final boolean create) {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					if (!create && !f.exists())
+						return;
+
+					try {
+						channel = new RandomAccessFile(f, "rw").getChannel();
+						if (create)
+							channel.truncate(0);
+
+						length = (int) Math.min(channel.size(),
+								Integer.MAX_VALUE);
+						if (length > 0)
+							map(FileChannel.MapMode.READ_ONLY, length);
+					}
+					catch (IOException e) {
+						closeChannel();
+					}
+				}
+			});
+
+			if (channel == null)
+				return false;
+
+			mappedFiles.add(this);
+			return true;
+		}
+
+		/**
+		 * Cut the file, and the host file, to length 0, for a truncating open
+		 * of a file that is already open.
+		 */
+		boolean truncate() {
+			final boolean[] success = new boolean[] { false };
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					// drop the mapping first; nothing past the new end may be
+					// touched through it
+					buffer = null;
+					capacity = 0;
+					writable = false;
+
+					try {
+						channel.truncate(0);
+						success[0] = true;
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+
+			if (success[0])
+				length = 0;
+
+			return success[0];
+		}
+
+		/**
+		 * Map the first <i>size</i> bytes of the host file. A read-write
+		 * mapping grows the host file if it is shorter.
+		 */
+		private void map(FileChannel.MapMode mode, int size)
+				throws IOException {
+			buffer = channel.map(mode, 0, size);
+			capacity = size;
+			writable = (mode == FileChannel.MapMode.READ_WRITE);
+		}
+
+		/**
+		 * Make sure the first <i>size</i> bytes of the file are mapped for
+		 * writing. A write within the file maps just the file; a write past
+		 * the mapping grows it by at least doubling.
+		 */
+		boolean reserve(final int size) {
+			if (writable && size <= capacity)
+				return true;
+
+			final long newCapacity = (size <= capacity) ? capacity : Math
+					.min(Integer.MAX_VALUE, Math.max(size, 2L * capacity));
+			final boolean[] success = new boolean[] { false };
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					try {
+						map(FileChannel.MapMode.READ_WRITE, (int) newCapacity);
+						success[0] = true;
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+
+			return success[0] && size <= capacity;
+		}
+
+		int read(int pos, byte[] buf, int offset, int amount) {
+			amount = Math.min(amount, length - pos);
+			if (amount <= 0)
+				return 0;
+
+			ByteBuffer view = buffer.duplicate();
+			view.position(pos);
+			view.get(buf, offset, amount);
+
+			return amount;
+		}
+
+		int write(int pos, byte[] buf, int offset, int amount) {
+			if ((long) pos + amount > Integer.MAX_VALUE
+					|| !reserve(pos + amount))
+				return -1;
+
+			ByteBuffer view = buffer.duplicate();
+			view.position(pos);
+			view.put(buf, offset, amount);
+
+			length = Math.max(length, pos + amount);
+
+			return amount;
+		}
+
+		/**
+		 * Drop one reference, and when the last one goes, write back the
+		 * mapping, if it was written, and cut the host file back to the
+		 * file's real length.
+		 */
+		void close() {
+			if (--references > 0)
+				return;
+
+			if (filesByName.get(name) == this)
+				filesByName.remove(name);
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					release();
+				}
+			});
+		}
+
+		/**
+		 * Release the host file. Must be called with privilege.
+		 */
+		void release() {
+			mappedFiles.remove(this);
+
+			if (writable && !removed) {
+				buffer.force();
+
+				try {
+					channel.truncate(length);
+				}
+				catch (IOException e) {
+				}
+			}
+			buffer = null;
+			capacity = 0;
+			writable = false;
+
+			closeChannel();
+		}
+
+		private void closeChannel() {
+			try {
+				if (channel != null)
+					channel.close();
+			}
+			catch (IOException e) {
+			}
+
+			channel = null;
+		}
+
+		private String name;
+
+		private File f;
+
+		private FileChannel channel = null;
+
+		private MappedByteBuffer buffer = null;
+
+		private int capacity = 0;
+
+		private boolean writable = false;
+
+		int length = 0;
+
+		int references = 0;
+
+		/** Set once the file is removed, so that it no longer touches the host. */
+		boolean removed = false;
+	}
+
+	private class MappedOpenFile extends OpenFileWithPosition {
+		MappedOpenFile(String name, MappedFile file) {
+			super(MappedFileSystem.this, name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			delay();
+
+			if (pos < 0)
+				return -1;
+
+			return file.read(pos, buf, offset, length);
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null)
+				return -1;
+
+			delay();
+
+			if (pos < 0)
+				return -1;
+
+			return file.write(pos, buf, offset, length);
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file != null) {
+				file.close();
+				file = null;
+				openCount--;
+			}
+		}
+
+		private MappedFile file;
+	}
+
+	private HashMap<String, MappedFile> filesByName = new HashMap<String, MappedFile>();
+
+	/** Every host file currently open and mapped. */
+	private ArrayList<MappedFile> mappedFiles = new ArrayList<MappedFile>();
+}
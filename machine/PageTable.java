@@ -0,0 +1,242 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+/**
+ * A single-level page table packed into one <tt>long</tt> per virtual page,
+ * instead of one <tt>TranslationEntry</tt> object per page. The low 32 bits
+ * of each word hold the physical page number; the bits above hold the valid,
+ * read-only, used and dirty flags and the base-2 logarithm of the number of
+ * pages the entry maps.
+ *
+ * <p>
+ * The virtual page number of an entry is its index in the table. A superpage
+ * of <i>n</i> pages occupies <i>n</i> consecutive words that all hold the
+ * first physical page of the run; its read-only, used and dirty bits are kept
+ * in the word of its first page, so that they apply to the whole superpage,
+ * just as every page of a superpage shares one <tt>TranslationEntry</tt>.
+ *
+ * <p>
+ * <tt>getEntry()</tt> and <tt>setEntry()</tt> convert to and from
+ * <tt>TranslationEntry</tt> for code written against the object form.
+ */
+public final class PageTable {
+	/**
+	 * Allocate a new page table in which every page is invalid.
+	 *
+	 * @param numPages the number of virtual pages the table maps.
+	 */
+	public PageTable(int numPages) {
+		Lib.assertTrue(numPages >= 0);
+
+		entries = new long[numPages];
+	}
+
+	/**
+	 * Return the number of virtual pages this table maps.
+	 *
+	 * @return the number of virtual pages.
+	 */
+	public int length() {
+		return entries.length;
+	}
+
+	/**
+	 * Return a copy of the entry mapping a virtual page, in object form. For a
+	 * page of a superpage, the entry describes the whole superpage.
+	 *
+	 * @param vpn the virtual page.
+	 * @return a new translation entry.
+	 */
+	public TranslationEntry getEntry(int vpn) {
+		int base = baseOf(vpn);
+		long word = entries[base];
+
+		TranslationEntry entry = new TranslationEntry(base, (int) word,
+				(word & validBit) != 0, (word & readOnlyBit) != 0,
+				(word & usedBit) != 0, (word & dirtyBit) != 0);
+		entry.pageCount = pageCount(word);
+		return entry;
+	}
+
+	/**
+	 * Store an entry, replacing whatever mapped its pages before. A superpage
+	 * entry fills every page it covers.
+	 *
+	 * @param entry the entry to store. Its <tt>vpn</tt> selects the pages.
+	 */
+	public void setEntry(TranslationEntry entry) {
+		int count = entry.pageCount;
+		Lib.assertTrue(count > 0 && Integer.bitCount(count) == 1
+				&& (entry.vpn & (count - 1)) == 0
+				&& (entry.ppn & (count - 1)) == 0);
+
+		long word = pack(entry.ppn, entry.valid, entry.readOnly, entry.used,
+				entry.dirty) | ((long) Integer.numberOfTrailingZeros(count) << countShift);
+
+		for (int i = 0; i < count; i++)
+			entries[entry.vpn + i] = word;
+	}
+
+	/**
+	 * Map a single virtual page, replacing whatever mapped it before.
+	 *
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page number.
+	 * @param valid the valid bit.
+	 * @param readOnly the read-only bit.
+	 * @param used the used bit.
+	 * @param dirty the dirty bit.
+	 */
+	public void set(int vpn, int ppn, boolean valid, boolean readOnly,
+			boolean used, boolean dirty) {
+		entries[vpn] = pack(ppn, valid, readOnly, used, dirty);
+	}
+
+	/**
+	 * Return the number of pages mapped by the entry covering a virtual page:
+	 * 1, or the size of its superpage.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the number of pages.
+	 */
+	public int getPageCount(int vpn) {
+		return pageCount(entries[vpn]);
+	}
+
+	/**
+	 * Split the superpage covering a virtual page, if any, into one entry per
+	 * page. Each page inherits the superpage's bits.
+	 *
+	 * @param vpn a page of the superpage.
+	 */
+	public void demote(int vpn) {
+		int count = pageCount(entries[vpn]);
+		if (count == 1)
+			return;
+
+		int base = vpn & -count;
+		long word = entries[base] & ~countMask;
+		for (int i = 0; i < count; i++)
+			entries[base + i] = word + i;
+	}
+
+	/**
+	 * Return the physical page a virtual page is mapped to. For a page of a
+	 * superpage, this is its own page within the physical run.
+	 *
+	 * @param vpn the virtual page.
+	 * @return the physical page number.
+	 */
+	public int getPpn(int vpn) {
+		int base = baseOf(vpn);
+		return (int) entries[base] + (vpn - base);
+	}
+
+	/**
+	 * Set the physical page a single-page entry maps.
+	 *
+	 * @param vpn the virtual page.
+	 * @param ppn the new physical page number.
+	 */
+	public void setPpn(int vpn, int ppn) {
+		Lib.assertTrue(pageCount(entries[vpn]) == 1);
+
+		entries[vpn] = (entries[vpn] & ~ppnMask) | (ppn & ppnMask);
+	}
+
+	/** Test the valid bit of the entry covering a virtual page. */
+	public boolean isValid(int vpn) {
+		return (entries[vpn] & validBit) != 0;
+	}
+
+	/** Set the valid bit of the entry covering a virtual page. */
+	public void setValid(int vpn, boolean valid) {
+		setBit(vpn, validBit, valid);
+	}
+
+	/** Test the read-only bit of the entry covering a virtual page. */
+	public boolean isReadOnly(int vpn) {
+		return (entries[baseOf(vpn)] & readOnlyBit) != 0;
+	}
+
+	/** Set the read-only bit of the entry covering a virtual page. */
+	public void setReadOnly(int vpn, boolean readOnly) {
+		setBit(vpn, readOnlyBit, readOnly);
+	}
+
+	/** Test the used bit of the entry covering a virtual page. */
+	public boolean isUsed(int vpn) {
+		return (entries[baseOf(vpn)] & usedBit) != 0;
+	}
+
+	/** Set the used bit of the entry covering a virtual page. */
+	public void setUsed(int vpn, boolean used) {
+		setBit(vpn, usedBit, used);
+	}
+
+	/** Test the dirty bit of the entry covering a virtual page. */
+	public boolean isDirty(int vpn) {
+		return (entries[baseOf(vpn)] & dirtyBit) != 0;
+	}
+
+	/** Set the dirty bit of the entry covering a virtual page. */
+	public void setDirty(int vpn, boolean dirty) {
+		setBit(vpn, dirtyBit, dirty);
+	}
+
+	/**
+	 * Set or clear a flag of the entry covering a virtual page. The valid bit
+	 * is kept in every page of a superpage, so that translation tests it
+	 * without finding the first page; the other flags only in the first page.
+	 */
+	private void setBit(int vpn, long bit, boolean value) {
+		int count = pageCount(entries[vpn]);
+		int base = vpn & -count;
+		int last = (bit == validBit) ? base + count : base + 1;
+
+		for (int i = base; i < last; i++) {
+			if (value)
+				entries[i] |= bit;
+			else
+				entries[i] &= ~bit;
+		}
+	}
+
+	/** Return the first page of the entry covering a virtual page. */
+	private int baseOf(int vpn) {
+		return vpn & -pageCount(entries[vpn]);
+	}
+
+	private static long pack(int ppn, boolean valid, boolean readOnly,
+			boolean used, boolean dirty) {
+		return (ppn & ppnMask) | (valid ? validBit : 0)
+				| (readOnly ? readOnlyBit : 0) | (used ? usedBit : 0)
+				| (dirty ? dirtyBit : 0);
+	}
+
+	/** Decode the number of pages an entry word maps. */
+	static int pageCount(long word) {
+		return 1 << (int) ((word & countMask) >>> countShift);
+	}
+
+	/**
+	 * One word per virtual page. Read and updated in place by the processor
+	 * when this is the current page table.
+	 */
+	final long[] entries;
+
+	static final long ppnMask = 0xFFFFFFFFL;
+
+	static final long validBit = 1L << 32;
+
+	static final long readOnlyBit = 1L << 33;
+
+	static final long usedBit = 1L << 34;
+
+	static final long dirtyBit = 1L << 35;
+
+	static final int countShift = 36;
+
+	static final long countMask = 0x1FL << countShift;
+}
@@ -40,17 +40,50 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		blockExecution = Config.getBoolean("Processor.blockExecution", false);
+
+		maxSuperpageSize = Config.getInteger("Processor.maxSuperpageSize", 1);
+		Lib.assertTrue(maxSuperpageSize > 0
+				&& Integer.bitCount(maxSuperpageSize) == 1);
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
+		if (Trace.buffer != null) {
+			final String traceFile = Config.getString("Processor.traceFile",
+					"nachos.trace");
+
+			privilege.addExitNotificationHandler(new Runnable() {
+				public void run() {
+					Processor.this.privilege.doPrivileged(new Runnable() {
+						public void run() {
+							Trace.buffer.writeFile(traceFile);
+						}
+					});
+				}
+			});
+		}
+
 		mainMemory = new byte[pageSize * numPhysPages];
+		decodeCache = new Decoded[numPhysPages][];
+		blockCache = new BasicBlock[numPhysPages][];
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			Lib.assertTrue(tlbSize > 0);
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int numBuckets = Integer.highestOneBit(tlbSize) * 4;
+			tlbBuckets = new int[numBuckets];
+			tlbBucketMask = numBuckets - 1;
+			tlbChain = new int[tlbSize];
+			for (int i = 0; i < numBuckets; i++)
+				tlbBuckets[i] = -1;
 		}
 		else {
 			translations = null;
@@ -93,6 +126,14 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// tracing needs to see every instruction and every tick
+		if (blockExecution && !Trace.processor && !Trace.disassemble
+				&& !Trace.fullDisassemble && !Trace.interrupt
+				&& Trace.buffer == null) {
+			while (true)
+				runBlock(inst);
+		}
+
 		while (true) {
 			try {
 				inst.run();
@@ -105,6 +146,57 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute the basic block starting at the current PC, charging the
+	 * simulated time for all of its instructions with a single tick.
+	 * 
+	 * <p>
+	 * The block is cut short so that it never runs past the time at which the
+	 * next interrupt falls due, and so that an exception is taken at exactly
+	 * the same instruction and simulated time as in single-step mode: the
+	 * instructions already completed are charged first, then the exception is
+	 * handled, then the faulting instruction is charged.
+	 * 
+	 * @param inst the instruction state used to execute the block.
+	 */
+	private void runBlock(Instruction inst) {
+		long budget = privilege.interrupt.userTicksUntilDue();
+		int executed = 0;
+
+		try {
+			int startPC = registers[regPC];
+
+			BasicBlock block = getBlock(translate(startPC, 4, false, true));
+
+			int length = (int) Math.min(block.instructions.length, budget);
+
+			codeModified = false;
+
+			while (executed < length) {
+				// stop if a branch in a delay slot redirected the PC
+				if (registers[regPC] != startPC + executed * 4)
+					break;
+
+				inst.run(block.instructions[executed]);
+				executed++;
+
+				if (codeModified)
+					break;
+			}
+		}
+		catch (MipsException e) {
+			if (executed > 0)
+				privilege.interrupt.tickUser(executed);
+
+			e.handle();
+
+			privilege.interrupt.tick(false);
+			return;
+		}
+
+		privilege.interrupt.tickUser(executed);
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -154,7 +246,8 @@ public final class Processor {
 	}
 
 	/**
-	 * Get the current page table, set by the last call to setPageTable().
+	 * Get the current page table, set by the last call to setPageTable(), or
+	 * <tt>null</tt> if the current page table is a packed one.
 	 * 
 	 * @return the current page table.
 	 */
@@ -175,6 +268,34 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		this.packedPageTable = null;
+	}
+
+	/**
+	 * Get the current packed page table, set by the last call to
+	 * setPageTable(), or <tt>null</tt> if the current page table is an array
+	 * of translation entries.
+	 * 
+	 * @return the current packed page table.
+	 */
+	public PageTable getPackedPageTable() {
+		Lib.assertTrue(!usingTLB);
+
+		return packedPageTable;
+	}
+
+	/**
+	 * Set the page table pointer to a packed page table. All further address
+	 * translations will use the specified page table, whose length determines
+	 * the size of the current address space.
+	 * 
+	 * @param pageTable the page table to use.
+	 */
+	public void setPageTable(PageTable pageTable) {
+		Lib.assertTrue(!usingTLB);
+
+		this.packedPageTable = pageTable;
+		this.translations = null;
 	}
 
 	/**
@@ -215,7 +336,117 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
+		Lib.assertTrue(isAligned(entry));
+
+		unlinkTLBEntry(number);
 		translations[number] = new TranslationEntry(entry);
+		if (translations[number].valid)
+			linkTLBEntry(number);
+
+		tlbPageCounts = 0;
+		for (int i = 0; i < tlbSize; i++) {
+			if (translations[i].valid)
+				tlbPageCounts |= translations[i].pageCount;
+		}
+
+		lastFetchEntry = null;
+	}
+
+	/**
+	 * Return the largest number of pages a single translation entry may map,
+	 * set by the <tt>Processor.maxSuperpageSize</tt> configuration key. 1
+	 * means superpages are disabled.
+	 * 
+	 * @return the largest superpage, in pages.
+	 */
+	public int getMaxSuperpageSize() {
+		return maxSuperpageSize;
+	}
+
+	/**
+	 * Test whether a translation entry maps a legal run of pages: a power of
+	 * two no larger than the largest superpage, starting at virtual and
+	 * physical pages that are multiples of it.
+	 */
+	private boolean isAligned(TranslationEntry entry) {
+		int count = entry.pageCount;
+
+		return count == 1
+				|| (count > 0 && count <= maxSuperpageSize
+						&& Integer.bitCount(count) == 1
+						&& (entry.vpn & (count - 1)) == 0 && (entry.ppn & (count - 1)) == 0);
+	}
+
+	/**
+	 * Find the TLB entry that maps a virtual page, trying each superpage
+	 * size present in the TLB from smallest to largest.
+	 * 
+	 * @param vpn the virtual page to look up.
+	 * @return the entry, or <tt>null</tt> on a TLB miss.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		for (int count = 1; count != 0 && count <= tlbPageCounts; count <<= 1) {
+			if ((tlbPageCounts & count) == 0)
+				continue;
+
+			int base = vpn & ~(count - 1);
+			for (int i = tlbBuckets[base & tlbBucketMask]; i != -1; i = tlbChain[i]) {
+				if (translations[i].vpn == base
+						&& translations[i].pageCount == count)
+					return translations[i];
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Add a valid TLB entry to its hash bucket. Each bucket is kept sorted by
+	 * TLB index, so that if several valid entries map the same page, lookups
+	 * find the lowest-numbered one, just as a linear scan of the TLB would.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 */
+	private void linkTLBEntry(int number) {
+		int bucket = translations[number].vpn & tlbBucketMask;
+
+		int prev = -1;
+		int next = tlbBuckets[bucket];
+		while (next != -1 && next < number) {
+			prev = next;
+			next = tlbChain[next];
+		}
+
+		tlbChain[number] = next;
+		if (prev == -1)
+			tlbBuckets[bucket] = number;
+		else
+			tlbChain[prev] = number;
+	}
+
+	/**
+	 * Remove a TLB entry from its hash bucket, if it is valid and therefore
+	 * linked into one.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 */
+	private void unlinkTLBEntry(int number) {
+		if (!translations[number].valid)
+			return;
+
+		int bucket = translations[number].vpn & tlbBucketMask;
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbChain[number];
+			return;
+		}
+
+		for (int i = tlbBuckets[bucket]; i != -1; i = tlbChain[i]) {
+			if (tlbChain[i] == number) {
+				tlbChain[i] = tlbChain[number];
+				return;
+			}
+		}
 	}
 
 	/**
@@ -238,6 +469,86 @@ public final class Processor {
 		return mainMemory;
 	}
 
+	/**
+	 * Discard all pre-decoded instructions and basic blocks cached for the
+	 * specified physical page. Must be called whenever the kernel writes to
+	 * a page that instructions may have been fetched from, for example when a
+	 * new page is loaded into the frame or the frame is given to a different
+	 * virtual page. Stores made by user instructions invalidate the page
+	 * themselves.
+	 * 
+	 * <p>
+	 * Each cached instruction is also tagged with the raw instruction word it
+	 * was decoded from, so single-step execution never runs a stale entry.
+	 * Basic blocks are not checked against memory when they are entered, so
+	 * block execution relies on this method being called.
+	 * 
+	 * @param ppn the physical page whose cached instructions to discard.
+	 */
+	public void invalidateDecodedPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+		blockCache[ppn] = null;
+	}
+
+	/**
+	 * Return the pre-decoded form of the instruction stored at the specified
+	 * physical address, decoding it and filling the cache if necessary.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word currently stored at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private Decoded getDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		Decoded[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		int slot = (paddr % pageSize) / 4;
+
+		Decoded decoded = page[slot];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			page[slot] = decoded;
+		}
+
+		return decoded;
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it and filling the cache if necessary. A cached block stays
+	 * valid until its page is invalidated, by a store to the page or by
+	 * <tt>invalidateDecodedPage()</tt>.
+	 * 
+	 * @param paddr the word-aligned physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private BasicBlock getBlock(int paddr) {
+		int ppn = paddr / pageSize;
+
+		BasicBlock[] page = blockCache[ppn];
+		if (page == null) {
+			page = new BasicBlock[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		int slot = (paddr % pageSize) / 4;
+
+		BasicBlock block = page[slot];
+		if (block == null) {
+			block = new BasicBlock(paddr);
+			page[slot] = block;
+		}
+
+		return block;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -287,18 +598,22 @@ public final class Processor {
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param fetching <tt>true</tt> if the memory reference is an instruction
+	 * fetch.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
+	private int translate(int vaddr, int size, boolean writing,
+			boolean fetching)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (Trace.processor)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
-			Lib.debug(dbgProcessor, "\t\talignment error");
+			if (Trace.processor)
+				System.out.println("\t\talignment error");
 			throw new MipsException(exceptionAddressError, vaddr);
 		}
 
@@ -306,6 +621,9 @@ public final class Processor {
 		int vpn = pageFromAddress(vaddr);
 		int offset = offsetFromAddress(vaddr);
 
+		if (packedPageTable != null)
+			return translatePacked(vaddr, vpn, offset, writing);
+
 		TranslationEntry entry = null;
 
 		// if not using a TLB, then the vpn is an index into the table
@@ -313,37 +631,52 @@ public final class Processor {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
-				Lib.debug(dbgProcessor, "\t\tpage fault");
+				if (Trace.processor)
+					System.out.println("\t\tpage fault");
 				throw new MipsException(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, instruction fetches usually hit the same page as last time
+		else if (fetching && lastFetchEntry != null
+				&& (vpn & -lastFetchEntry.pageCount) == lastFetchEntry.vpn) {
+			entry = lastFetchEntry;
+		}
+		// else, look up the vpn in the hashed TLB index
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			entry = lookupTLB(vpn);
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
+				if (Trace.processor)
+					System.out.println("\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+			if (fetching)
+				lastFetchEntry = entry;
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
-			Lib.debug(dbgProcessor, "\t\tread-only exception");
+			if (Trace.processor)
+				System.out.println("\t\tread-only exception");
 			throw new MipsException(exceptionReadOnly, vaddr);
 		}
 
-		// check if physical page number is out of range
+		// check if physical page number is out of range; a superpage maps
+		// consecutive physical pages
 		int ppn = entry.ppn;
+		if (entry.pageCount != 1) {
+			if (!isAligned(entry)) {
+				if (Trace.processor)
+					System.out.println("\t\tbad superpage");
+				throw new MipsException(exceptionBusError, vaddr);
+			}
+			ppn += vpn - entry.vpn;
+		}
 		if (ppn < 0 || ppn >= numPhysPages) {
-			Lib.debug(dbgProcessor, "\t\tbad ppn");
+			if (Trace.processor)
+				System.out.println("\t\tbad ppn");
 			throw new MipsException(exceptionBusError, vaddr);
 		}
 
@@ -354,7 +687,70 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (Trace.processor)
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Finish translating a virtual address through the current packed page
+	 * table. The checks are the same as for an array of translation entries,
+	 * but each page is a single word, so a translation touches no objects.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param vpn the virtual page number of <i>vaddr</i>.
+	 * @param offset the offset of <i>vaddr</i> within its page.
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translatePacked(int vaddr, int vpn, int offset, boolean writing)
+			throws MipsException {
+		long[] entries = packedPageTable.entries;
+
+		if (vpn >= entries.length || (entries[vpn] & PageTable.validBit) == 0) {
+			privilege.stats.numPageFaults++;
+			if (Trace.processor)
+				System.out.println("\t\tpage fault");
+			throw new MipsException(exceptionPageFault, vaddr);
+		}
+
+		// the bits of a superpage are kept in the word of its first page
+		long word = entries[vpn];
+		int base = vpn;
+		int count = PageTable.pageCount(word);
+		if (count != 1) {
+			if (count > maxSuperpageSize) {
+				if (Trace.processor)
+					System.out.println("\t\tbad superpage");
+				throw new MipsException(exceptionBusError, vaddr);
+			}
+			base = vpn & -count;
+			word = entries[base];
+		}
+
+		// check if trying to write a read-only page
+		if ((word & PageTable.readOnlyBit) != 0 && writing) {
+			if (Trace.processor)
+				System.out.println("\t\tread-only exception");
+			throw new MipsException(exceptionReadOnly, vaddr);
+		}
+
+		// check if physical page number is out of range
+		int ppn = (int) word + (vpn - base);
+		if (ppn < 0 || ppn >= numPhysPages) {
+			if (Trace.processor)
+				System.out.println("\t\tbad ppn");
+			throw new MipsException(exceptionBusError, vaddr);
+		}
+
+		// set used and dirty bits as appropriate
+		entries[base] = word | PageTable.usedBit
+				| (writing ? PageTable.dirtyBit : 0);
+
+		int paddr = (ppn * pageSize) + offset;
+
+		if (Trace.processor)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
@@ -369,19 +765,23 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (Trace.processor)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false, false),
 				size);
 
-		if (Lib.test(dbgProcessor))
+		if (Trace.processor)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
+		if (Trace.buffer != null)
+			Trace.buffer.record(TraceBuffer.kindLoad, privilege.stats.totalTicks,
+					vaddr, value);
+
 		return value;
 	}
 
@@ -395,14 +795,27 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (Trace.processor)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true, false);
+
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+		if (Trace.buffer != null)
+			Trace.buffer.record(TraceBuffer.kindStore, privilege.stats.totalTicks,
+					vaddr, value);
+
+		// drop the page's blocks, which may include the word just stored
+		int ppn = paddr / pageSize;
+		if (decodeCache[ppn] != null) {
+			blockCache[ppn] = null;
+			codeModified = true;
+		}
 	}
 
 	/**
@@ -549,6 +962,28 @@ public final class Processor {
 	/** <tt>true</tt> if using a software-managed TLB. */
 	private boolean usingTLB;
 
+	/**
+	 * <tt>true</tt> if straight-line code should be executed a basic block at
+	 * a time. Set by the <tt>Processor.blockExecution</tt> configuration key.
+	 */
+	private boolean blockExecution;
+
+	/**
+	 * Set by <tt>writeMem()</tt> when a store hits a page that instructions
+	 * have been fetched from, so that the current basic block, which may no
+	 * longer match memory, is abandoned.
+	 */
+	private boolean codeModified = false;
+
+	/** The largest number of pages one translation entry may map. */
+	private int maxSuperpageSize;
+
+	/**
+	 * The sizes, in pages, of the valid TLB entries, one bit per size, so that
+	 * a lookup only tries sizes that are present.
+	 */
+	private int tlbPageCounts = 0;
+
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
@@ -558,6 +993,29 @@ public final class Processor {
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * The current page table, if it is a packed one rather than an array of
+	 * translation entries. Never set when using a TLB.
+	 */
+	private PageTable packedPageTable = null;
+
+	/**
+	 * Hash index over the valid TLB entries, used instead of scanning the
+	 * whole TLB. Each bucket holds the TLB index of the first entry whose vpn
+	 * hashes to it, or -1, and <tt>tlbChain</tt> links the rest.
+	 */
+	private int[] tlbBuckets;
+
+	private int tlbBucketMask;
+
+	private int[] tlbChain;
+
+	/**
+	 * The TLB entry that translated the last instruction fetch, or
+	 * <tt>null</tt>. Cleared whenever the TLB is written.
+	 */
+	private TranslationEntry lastFetchEntry = null;
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -570,6 +1028,19 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Pre-decoded instructions, indexed by physical page and then by word
+	 * within the page. A page's array is allocated the first time an
+	 * instruction is fetched from it.
+	 */
+	private Decoded[][] decodeCache;
+
+	/**
+	 * Basic blocks, indexed by the physical page and word of their first
+	 * instruction.
+	 */
+	private BasicBlock[][] blockCache;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -579,6 +1050,39 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInterrupt = 'i';
+
+	/**
+	 * Tracing switches, resolved once when the processor is created (after
+	 * the command line and configuration file have been processed). Since they
+	 * are constants, the tests on every fetch and memory access disappear
+	 * from compiled code when tracing is off.
+	 */
+	private static final class Trace {
+		static final boolean processor = Lib.test(dbgProcessor);
+
+		static final boolean disassemble = Lib.test(dbgDisassemble);
+
+		static final boolean fullDisassemble = Lib.test(dbgFullDisassemble);
+
+		static final boolean interrupt = Lib.test(dbgInterrupt);
+
+		/**
+		 * The binary trace of recent instructions, memory accesses and
+		 * exceptions, or <tt>null</tt> if the
+		 * <tt>Processor.traceBufferSize</tt> configuration key is not set.
+		 * Written to the file named by <tt>Processor.traceFile</tt> when
+		 * Nachos exits.
+		 */
+		static final TraceBuffer buffer = createBuffer();
+
+		private static TraceBuffer createBuffer() {
+			int size = Config.getInteger("Processor.traceBufferSize", 0);
+
+			return (size > 0) ? new TraceBuffer(size) : null;
+		}
+	}
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -600,12 +1104,16 @@ public final class Processor {
 		}
 
 		public void handle() {
+			if (Trace.buffer != null)
+				Trace.buffer.record(TraceBuffer.kindException,
+						privilege.stats.totalTicks, cause, badVAddr);
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
 				writeRegister(regBadVAddr, badVAddr);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (Trace.disassemble || Trace.fullDisassemble)
 				System.out.println("exception: " + exceptionNames[cause]);
 
 			finishLoad();
@@ -633,88 +1141,84 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute an instruction that is already known to be at the current
+		 * PC, skipping the fetch.
+		 */
+		public void run(Decoded decoded) throws MipsException {
+			this.decoded = decoded;
+			value = decoded.value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((Trace.disassemble && !Trace.processor)
+					|| Trace.fullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
-		}
+			if (Trace.processor)
+				System.out.println("\treadMem vaddr=0x"
+						+ Lib.toHexString(registers[regPC]) + ", size=4");
 
-		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			int paddr = translate(registers[regPC], 4, false, true);
+			value = Lib.bytesToInt(mainMemory, paddr, 4);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			if (Trace.processor)
+				System.out.println("\t\tvalue read=0x"
+						+ Lib.toHexString(value, 8));
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			decoded = getDecoded(paddr, value);
+		}
+
+		private void decode() {
+			// the static fields come straight from the decode cache
+			Decoded d = decoded;
+
+			if (Trace.buffer != null)
+				Trace.buffer.record(TraceBuffer.kindInstruction,
+						privilege.stats.totalTicks, registers[regPC], value);
+
+			op = d.op;
+			rs = d.rs;
+			rt = d.rt;
+			rd = d.rd;
+			sh = d.sh;
+			func = d.func;
+			target = d.target;
+			imm = d.imm;
+
+			operation = d.operation;
+			name = d.name;
+			format = d.format;
+			flags = d.flags;
+
+			size = d.size;
+			dstReg = d.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + d.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -735,13 +1239,13 @@ public final class Processor {
 				src2 &= 0xFFFFFFFFL;
 			}
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			if (Trace.disassemble || Trace.fullDisassemble)
 				print();
 		}
 
 		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (Trace.disassemble && Trace.processor
+					&& !Trace.fullDisassemble)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -773,7 +1277,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (Trace.fullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -785,7 +1289,7 @@ public final class Processor {
 					minCharsPrinted += 2;
 					maxCharsPrinted += 3;
 
-					if (Lib.test(dbgFullDisassemble)
+					if (Trace.fullDisassemble
 							&& (i != 0 || !test(Mips.DST))
 							&& !test(Mips.DELAYEDLOAD)) {
 						System.out
@@ -817,7 +1321,7 @@ public final class Processor {
 					minCharsPrinted += 4;
 					maxCharsPrinted += 5;
 
-					if (Lib.test(dbgFullDisassemble)) {
+					if (Trace.fullDisassemble) {
 						System.out
 								.print("#0x" + Lib.toHexString(registers[rs]));
 						minCharsPrinted += 11;
@@ -857,8 +1361,8 @@ public final class Processor {
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (Trace.disassemble && Trace.processor
+					&& !Trace.fullDisassemble)
 				System.out.print("\n");
 		}
 
@@ -1051,7 +1555,7 @@ public final class Processor {
 				registers[dstReg] = (int) dst;
 
 			if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-				if (Lib.test(dbgFullDisassemble)) {
+				if (Trace.fullDisassemble) {
 					System.out.print("#0x" + Lib.toHexString((int) dst));
 					if (test(Mips.DELAYEDLOAD))
 						System.out.print(" (delayed load)");
@@ -1064,12 +1568,14 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if ((Trace.disassemble && !Trace.processor)
+					|| Trace.fullDisassemble)
 				System.out.print("\n");
 		}
 
 		// state used to execute a single instruction
+		Decoded decoded;
+
 		int value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
@@ -1087,6 +1593,126 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * The fields of an instruction that depend only on the instruction word,
+	 * so that they can be computed once and reused every time the same word
+	 * is executed.
+	 */
+	private static final class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			int signedImm = Lib.extend(value, 0, 16);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch offsets always use the sign-extended immediate
+			branchOffset = signedImm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags))
+				imm = signedImm & 0xFFFF;
+			else
+				imm = signedImm;
+		}
+
+		/**
+		 * Test whether this instruction always ends a basic block because it
+		 * cannot complete without raising an exception.
+		 */
+		boolean endsBlock() {
+			return operation == Mips.SYSCALL || operation == Mips.UNIMPL
+					|| operation == Mips.INVALID;
+		}
+
+		/** The raw instruction word this entry was decoded from. */
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target, imm, branchOffset;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
+	/**
+	 * A run of straight-line instructions within one physical page. A block
+	 * ends after the delay slot of the first branch or jump, after the first
+	 * instruction that always raises an exception (such as a syscall), or at
+	 * the end of the page, whichever comes first.
+	 */
+	private final class BasicBlock {
+		BasicBlock(int paddr) {
+			int pageEnd = (paddr / pageSize + 1) * pageSize;
+			Decoded[] run = new Decoded[(pageEnd - paddr) / 4];
+			int length = 0;
+			boolean delaySlot = false;
+
+			while (paddr + length * 4 < pageEnd) {
+				int addr = paddr + length * 4;
+				Decoded decoded = getDecoded(addr,
+						Lib.bytesToInt(mainMemory, addr, 4));
+				run[length++] = decoded;
+
+				if (delaySlot || decoded.endsBlock())
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+			}
+
+			instructions = new Decoded[length];
+			System.arraycopy(run, 0, instructions, 0, length);
+		}
+
+		final Decoded[] instructions;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
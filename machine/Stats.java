@@ -29,8 +29,44 @@ public final class Stats {
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
+		System.out.println("File cache: hits " + numFileCacheHits
+				+ ", misses " + numFileCacheMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
+		System.out.println("Idle: ticks skipped " + idleTicksSkipped);
+		System.out.println("Timer: interrupts " + numTimerInterrupts
+				+ ", ticks suppressed " + numTimerTicksSuppressed
+				+ ", yields avoided " + numTimerYieldsAvoided);
+	}
+
+	/**
+	 * Events the kernel counts itself, through <tt>Machine.countEvent()</tt>.
+	 */
+	public enum KernelEvent {
+		swapRead, swapWrite, fileCacheHit, fileCacheMiss, timerYieldAvoided
+	}
+
+	/**
+	 * Add to the counter of a kind of kernel event.
+	 */
+	void count(KernelEvent event, int count) {
+		switch (event) {
+		case swapRead:
+			numSwapReads += count;
+			break;
+		case swapWrite:
+			numSwapWrites += count;
+			break;
+		case fileCacheHit:
+			numFileCacheHits += count;
+			break;
+		case fileCacheMiss:
+			numFileCacheMisses += count;
+			break;
+		case timerYieldAvoided:
+			numTimerYieldsAvoided += count;
+			break;
+		}
 	}
 
 	/**
@@ -75,12 +111,39 @@ public final class Stats {
         /** The total number of pages written to swap. */
         public int numSwapWrites = 0;
 
+	/** The total number of file blocks found in the kernel's file cache. */
+	public int numFileCacheHits = 0;
+
+	/** The total number of file blocks not found in the kernel's file cache. */
+	public int numFileCacheMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
 	/** The total number of packets Nachos has received from the network. */
 	public int numPacketsReceived = 0;
 
+	/**
+	 * The number of kernel ticks the idle thread fast-forwarded over instead
+	 * of yielding through them. Included in <tt>kernelTicks</tt>.
+	 */
+	public long idleTicksSkipped = 0;
+
+	/** The total number of timer interrupts delivered to the kernel. */
+	public int numTimerInterrupts = 0;
+
+	/**
+	 * The number of periodic timer interrupts that did not occur because the
+	 * kernel had stopped the periodic timer.
+	 */
+	public int numTimerTicksSuppressed = 0;
+
+	/**
+	 * The number of timer interrupts after which the kernel did not yield,
+	 * because no other thread was ready.
+	 */
+	public int numTimerYieldsAvoided = 0;
+
 	/**
 	 * The amount to advance simulated time after each user instructions is
 	 * executed.
@@ -64,7 +64,7 @@ public class StubFileSystem implements FileSystem {
 		private File f;
 	}
 
-	private void delay() {
+	void delay() {
 		long time = Machine.timer().getTime();
 		int amount = 1000;
 		ThreadedKernel.alarm.waitUntil(amount);
@@ -166,15 +166,15 @@ public class StubFileSystem implements FileSystem {
 		private boolean open = false;
 	}
 
-	private int openCount = 0;
+	int openCount = 0;
 
-	private static final int maxOpenFiles = 16;
+	static final int maxOpenFiles = 16;
 
-	private Privilege privilege;
+	Privilege privilege;
 
-	private File directory;
+	File directory;
 
-	private static boolean checkName(String name) {
+	static boolean checkName(String name) {
 		char[] chars = name.toCharArray();
 
 		for (int i = 0; i < chars.length; i++) {
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,28 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * How TCBs hand control to each other is chosen at boot by the
+ * <tt>TCB.backend</tt> configuration key:
+ * <ul>
+ * <li><tt>park</tt>: platform threads, handing off through a
+ * volatile owner token and <tt>LockSupport.park()</tt> and
+ * <tt>unpark()</tt>, without taking any lock.
+ * <li><tt>virtual</tt>: virtual threads, with the same handoff. Parking
+ * unmounts a waiting virtual thread from its carrier instead of blocking it.
+ * Falls back to <tt>park</tt> on a JVM without virtual threads.
+ * <li><tt>monitor</tt> (the default): platform threads, waiting on and
+ * notifying a monitor per TCB, as in the original Nachos.
+ * </ul>
+ * Whatever the backend, only one TCB's thread runs at a time: the owner of
+ * the token, or the one whose <tt>running</tt> flag is set.
+ * 
+ * <p>
+ * With the token-based backends, a thread being switched to first spins for
+ * up to <tt>TCB.spinCount</tt> checks of the token (0 by default) before
+ * parking. On a multiprocessor host this catches a quick handoff without the
+ * cost of parking and being unparked.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -39,6 +63,43 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		String name = Config.getString("TCB.backend", "monitor");
+		if (name.equals("monitor"))
+			backend = backendMonitor;
+		else if (name.equals("park"))
+			backend = backendPark;
+		else if (name.equals("virtual"))
+			backend = findVirtualThreads() ? backendVirtual : backendPark;
+		else
+			Lib.assertNotReached("unknown TCB.backend: " + name);
+
+		threadLimit = Config.getInteger("TCB.maxThreads",
+				backend == backendVirtual ? Integer.MAX_VALUE : maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+
+		spinCount = Config.getInteger("TCB.spinCount", 0);
+		Lib.assertTrue(spinCount >= 0);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual()</tt> and
+	 * <tt>Thread.Builder.unstarted()</tt>, which only exist on JVMs with
+	 * virtual threads. Reflection keeps Nachos buildable on older JVMs.
+	 * 
+	 * @return <tt>true</tt> if this JVM supports virtual threads.
+	 */
+	private static boolean findVirtualThreads() {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			return true;
+		}
+		catch (Exception e) {
+			ofVirtual = unstarted = null;
+			return false;
+		}
 	}
 
 	/**
@@ -68,7 +129,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -102,7 +163,7 @@ public final class TCB {
 
 			privilege.doPrivileged(new Runnable() {
 				public void run() {
-					javaThread = new Thread(tcbTarget);
+					javaThread = newThread(tcbTarget);
 				}
 			});
 
@@ -111,9 +172,14 @@ public final class TCB {
 			 * blocking in yield(). We do this by temporarily turning off the
 			 * current TCB, starting the new Java thread, and waiting for it to
 			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * safe to context switch to the new TCB. With the token-based
+			 * backends, the token is taken away from the current TCB so that it
+			 * really waits, and the new TCB hands it back to the TCB latched in
+			 * starter, since currentTCB is not ours to rely on once it runs.
 			 */
+			starter = currentTCB;
 			currentTCB.running = false;
+			owner = null;
 
 			this.javaThread.start();
 			currentTCB.waitForInterrupt();
@@ -216,6 +282,22 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	/**
+	 * Create the Java thread for a TCB, a virtual thread if that backend is
+	 * in use. Must be called with privilege.
+	 */
+	private static Thread newThread(Runnable target) {
+		if (backend != backendVirtual)
+			return new Thread(target);
+
+		try {
+			return (Thread) unstarted.invoke(ofVirtual.invoke(null), target);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -225,11 +307,13 @@ public final class TCB {
 			 * start() is waiting for us to wake it up, signalling that it's OK
 			 * to context switch to us. We leave the running flag false so that
 			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
+			 * sleep. All we have to do is wake up the starting TCB and then wait
 			 * to get woken up by contextSwitch() or destroy().
 			 */
 
-			currentTCB.interrupt();
+			TCB parent = starter;
+			starter = null;
+			parent.interrupt();
 			this.yield();
 		}
 		else {
@@ -240,6 +324,7 @@ public final class TCB {
 
 			currentTCB = this;
 			running = true;
+			owner = this;
 		}
 
 		try {
@@ -298,7 +383,42 @@ public final class TCB {
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (backend == backendMonitor) {
+			waitOnMonitor();
+			return;
+		}
+
+		for (int i = 0; i < spinCount; i++) {
+			if (owner == this)
+				return;
+		}
+
+		// a spurious return from park() just goes round again
+		while (owner != this)
+			LockSupport.park(this);
+	}
+
+	/**
+	 * Wake up this TCB by handing it the owner token, or, with the
+	 * <tt>monitor</tt> backend, by setting its <tt>running</tt> flag to
+	 * <tt>true</tt> and signalling it. Used in the ping-pong process of
+	 * starting and destroying TCBs, as well as in context switching to this
+	 * TCB.
+	 */
+	private void interrupt() {
+		if (backend == backendMonitor) {
+			notifyMonitor();
+			return;
+		}
+
+		// if the thread has not parked yet, the permit makes it return at once
+		owner = this;
+		LockSupport.unpark(javaThread);
+	}
+
+	/** <tt>waitForInterrupt()</tt> for the <tt>monitor</tt> backend. */
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -308,13 +428,8 @@ public final class TCB {
 		}
 	}
 
-	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
-	 */
-	private synchronized void interrupt() {
+	/** <tt>interrupt()</tt> for the <tt>monitor</tt> backend. */
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -342,10 +457,37 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence, unless the <tt>TCB.maxThreads</tt> configuration key says
+	 * otherwise. The <tt>virtual</tt> backend has no limit by default.
 	 */
 	public static final int maxThreads = 250;
 
+	/** The thread limit in force, set when privilege is given. */
+	private static int threadLimit = maxThreads;
+
+	private static final int backendMonitor = 0, backendPark = 1,
+			backendVirtual = 2;
+
+	/** The handoff backend, selected by the <tt>TCB.backend</tt> key. */
+	private static int backend = backendMonitor;
+
+	/**
+	 * The TCB whose thread may run, with the <tt>park</tt> and
+	 * <tt>virtual</tt> backends. Handing it to another TCB is what lets that
+	 * TCB's thread proceed; a thread only ever waits for the token to become
+	 * its own, so no per-TCB flag needs to be cleared first.
+	 */
+	private static volatile TCB owner = null;
+
+	/** How many times to check the owner token before parking. */
+	private static int spinCount = 0;
+
+	/** <tt>Thread.ofVirtual()</tt>, if the <tt>virtual</tt> backend is used. */
+	private static Method ofVirtual = null;
+
+	/** <tt>Thread.Builder.unstarted()</tt>, likewise. */
+	private static Method unstarted = null;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -401,7 +543,7 @@ public final class TCB {
 	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * TCB. Only used by the <tt>monitor</tt> backend.
 	 */
 	private boolean running = false;
 
@@ -418,6 +560,12 @@ public final class TCB {
 
 	private Runnable target;
 
+	/**
+	 * The TCB that called <tt>start()</tt>, waiting for this TCB's thread to
+	 * signal that it is ready to be switched to.
+	 */
+	private TCB starter = null;
+
 	private Runnable tcbTarget;
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The periodic interrupt can be stopped and restarted with
+ * <tt>setPeriodic()</tt>, and a one-shot interrupt can be programmed for a
+ * given time with <tt>scheduleOneShot()</tt>. Both call the same handler.
+ * This lets a kernel run without ticks while no thread needs preempting.
  */
 public final class Timer {
 	/**
@@ -31,6 +37,12 @@ public final class Timer {
 			}
 		};
 
+		oneShotInterrupt = new Runnable() {
+			public void run() {
+				oneShotInterrupt();
+			}
+		};
+
 		autoGraderInterrupt = new Runnable() {
 			public void run() {
 				Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -60,11 +72,79 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Test whether the periodic timer interrupt is running.
+	 * 
+	 * @return <tt>true</tt> if the periodic interrupt is running.
+	 */
+	public boolean isPeriodic() {
+		return periodic;
+	}
+
+	/**
+	 * Stop or restart the periodic timer interrupt. While it is stopped, the
+	 * handler is only called for one-shot interrupts. The number of periodic
+	 * interrupts that would have occurred meanwhile is added to
+	 * <tt>Stats.numTimerTicksSuppressed</tt> when it is restarted.
+	 * 
+	 * @param periodic <tt>true</tt> to run the periodic interrupt.
+	 */
+	public void setPeriodic(boolean periodic) {
+		if (periodic == this.periodic)
+			return;
+
+		this.periodic = periodic;
+
+		if (periodic) {
+			privilege.stats.numTimerTicksSuppressed += (getTime() - stoppedAt)
+					/ Stats.TimerTicks;
+			scheduleInterrupt();
+		}
+		else {
+			stoppedAt = getTime();
+		}
+	}
+
+	/**
+	 * Program a one-shot timer interrupt, replacing any one-shot interrupt
+	 * programmed before.
+	 * 
+	 * @param time the time at which the handler should be called. If it has
+	 * already passed, the interrupt occurs on the next tick.
+	 */
+	public void scheduleOneShot(long time) {
+		long now = getTime();
+		if (time <= now)
+			time = now + 1;
+
+		oneShotDue = time;
+		privilege.interrupt.schedule(time - now, "timer one-shot",
+				oneShotInterrupt);
+	}
+
 	private void timerInterrupt() {
+		// a stale interrupt, scheduled before the timer was last stopped
+		if (!periodic || getTime() < periodicDue)
+			return;
+
 		scheduleInterrupt();
+		fire();
+	}
+
+	private void oneShotInterrupt() {
+		// a stale interrupt, replaced by a later scheduleOneShot()
+		if (getTime() < oneShotDue)
+			return;
+
+		oneShotDue = Long.MAX_VALUE;
+		fire();
+	}
+
+	private void fire() {
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
+		privilege.stats.numTimerInterrupts++;
 
 		if (handler != null)
 			handler.run();
@@ -74,6 +154,7 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
+		periodicDue = getTime() + delay;
 		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
 	}
 
@@ -85,6 +166,19 @@ public final class Timer {
 
 	private Runnable timerInterrupt;
 
+	private Runnable oneShotInterrupt;
+
+	private boolean periodic = true;
+
+	/** The time the periodic interrupt was last scheduled for. */
+	private long periodicDue;
+
+	/** When the periodic interrupt was last stopped. */
+	private long stoppedAt;
+
+	/** The time of the programmed one-shot interrupt, if any. */
+	private long oneShotDue = Long.MAX_VALUE;
+
 	private Runnable autoGraderInterrupt;
 
 	private Privilege privilege;
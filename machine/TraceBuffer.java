@@ -0,0 +1,145 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A fixed-size ring buffer of binary trace records. Once the buffer is full,
+ * each new record overwrites the oldest one, so the buffer always holds the
+ * most recent events leading up to a crash or halt.
+ *
+ * <p>
+ * Each record is a kind, the simulated time at which it was recorded, and
+ * two 32-bit operands whose meaning depends on the kind (for example the
+ * PC and instruction word of an executed instruction).
+ *
+ * <p>
+ * When written out, the buffer is a big-endian stream consisting of the
+ * magic number <tt>0x4E545243</tt> ("NTRC"), the number of records that
+ * follow, and then the records from oldest to newest, each as a 4-byte kind,
+ * an 8-byte time, and two 4-byte operands.
+ */
+public final class TraceBuffer {
+	/**
+	 * Allocate a new trace buffer.
+	 *
+	 * @param capacity the number of records to keep; rounded up to a power of
+	 * two.
+	 */
+	public TraceBuffer(int capacity) {
+		Lib.assertTrue(capacity > 0 && capacity <= (1 << 24));
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		mask = size - 1;
+		kinds = new int[size];
+		times = new long[size];
+		operands = new long[size];
+	}
+
+	/**
+	 * Append a record, overwriting the oldest one if the buffer is full.
+	 *
+	 * @param kind the kind of record, one of the <tt>kind<i>*</i></tt>
+	 * constants.
+	 * @param time the simulated time of the event.
+	 * @param first the first operand.
+	 * @param second the second operand.
+	 */
+	public void record(int kind, long time, int first, int second) {
+		int i = (int) (count++ & mask);
+
+		kinds[i] = kind;
+		times[i] = time;
+		operands[i] = ((long) first << 32) | (second & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Return the total number of records appended, including those that
+	 * have since been overwritten.
+	 *
+	 * @return the number of records appended.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Write the records currently held in the buffer to the specified
+	 * stream, oldest first.
+	 *
+	 * @param stream the stream to write to.
+	 * @exception IOException if the stream could not be written.
+	 */
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+
+		int held = (int) Math.min(count, mask + 1);
+
+		out.writeInt(magic);
+		out.writeInt(held);
+
+		for (long n = count - held; n < count; n++) {
+			int i = (int) (n & mask);
+
+			out.writeInt(kinds[i]);
+			out.writeLong(times[i]);
+			out.writeLong(operands[i]);
+		}
+
+		out.flush();
+	}
+
+	/**
+	 * Write the records currently held in the buffer to the specified host
+	 * file. Errors are reported on the console but otherwise ignored.
+	 *
+	 * @param fileName the name of the host file to create.
+	 */
+	public void writeFile(String fileName) {
+		try {
+			FileOutputStream file = new FileOutputStream(fileName);
+			try {
+				write(file);
+			}
+			finally {
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("could not write trace file " + fileName);
+		}
+	}
+
+	/** An instruction was executed. Operands: PC, instruction word. */
+	public static final int kindInstruction = 0;
+
+	/** A user load was performed. Operands: virtual address, value. */
+	public static final int kindLoad = 1;
+
+	/** A user store was performed. Operands: virtual address, value. */
+	public static final int kindStore = 2;
+
+	/** A user exception was raised. Operands: cause, bad virtual address. */
+	public static final int kindException = 3;
+
+	private static final int magic = 0x4E545243;
+
+	private final int mask;
+
+	private final int[] kinds;
+
+	private final long[] times;
+
+	private final long[] operands;
+
+	private long count = 0;
+}
@@ -52,6 +52,7 @@ public final class TranslationEntry
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		pageCount = entry.pageCount;
 	}
 
 	/** The virtual page number. */
@@ -60,6 +61,17 @@ public final class TranslationEntry
 	/** The physical page number. */
 	public int ppn;
 
+	/**
+	 * The number of contiguous pages this entry maps, starting at
+	 * <tt>vpn</tt> and <tt>ppn</tt>. Greater than 1 only for a superpage, in
+	 * which case it is a power of two no larger than
+	 * <tt>Processor.getMaxSuperpageSize()</tt>, and both page numbers are
+	 * multiples of it. In a page table, every page of a superpage refers to
+	 * the same entry. The used, dirty and read-only bits apply to the whole
+	 * superpage.
+	 */
+	public int pageCount = 1;
+
 	/**
 	 * If this flag is <tt>false</tt>, this translation entry is ignored.
 	 */
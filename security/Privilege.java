@@ -157,6 +157,26 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time by several user instructions at once.
+		 * The caller must make sure that no pending interrupt falls due
+		 * before the last of these instructions, as given by
+		 * <tt>userTicksUntilDue()</tt>.
+		 * 
+		 * @param numInstructions the number of MIPS instructions executed.
+		 */
+		public void tickUser(int numInstructions);
+
+		/**
+		 * Return the number of user instructions that can execute before the
+		 * next pending interrupt falls due. The interrupt fires at the end of
+		 * the last of these instructions.
+		 * 
+		 * @return the number of instructions until the next interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupt is pending.
+		 */
+		public long userTicksUntilDue();
 	}
 
 	/**
@@ -0,0 +1,100 @@
+/* seek.c
+ *
+ * Exercise lseek() and per-descriptor file positions. Run without
+ * arguments; the program execs a second copy of itself (with the argument
+ * "child") to read the same file through a descriptor of its own.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME "seek.txt"
+
+char buf[32];
+
+/* Read n bytes at the current position of fd and compare them to expected. */
+void expect(int fd, char *expected, int n)
+{
+  assert(read(fd, buf, n) == n);
+  assert(strncmp(buf, expected, n) == 0);
+}
+
+int child()
+{
+  int fd;
+
+  fd = open(FILENAME);
+  assert(fd != -1);
+
+  /* a new descriptor starts at the beginning, whatever the parent did */
+  assert(lseek(fd, 0, SEEK_CUR) == 0);
+  expect(fd, "01234", 5);
+
+  assert(lseek(fd, 15, SEEK_SET) == 15);
+  expect(fd, "fghij", 5);
+
+  close(fd);
+  return 0;
+}
+
+int main(int argc, char** argv)
+{
+  char *args[2];
+  int fd, pid, status;
+
+  if (argc == 2 && strcmp(argv[1], "child") == 0)
+    return child();
+
+  creat(FILENAME);
+  fd = open(FILENAME);
+  assert(fd != -1);
+
+  assert(write(fd, "0123456789abcdefghij", 20) == 20);
+  assert(lseek(fd, 0, SEEK_CUR) == 20);
+  assert(lseek(fd, 0, SEEK_END) == 20);
+
+  /* read at an absolute offset, then from where that read stopped */
+  assert(lseek(fd, 10, SEEK_SET) == 10);
+  expect(fd, "abcde", 5);
+  assert(lseek(fd, 0, SEEK_CUR) == 15);
+
+  /* write at a relative offset and read the new bytes back */
+  assert(lseek(fd, -5, SEEK_CUR) == 10);
+  assert(write(fd, "ABCDE", 5) == 5);
+  assert(lseek(fd, 10, SEEK_SET) == 10);
+  expect(fd, "ABCDE", 5);
+
+  /* a read near the end stops at the end */
+  assert(lseek(fd, -3, SEEK_END) == 17);
+  assert(read(fd, buf, 10) == 3);
+  assert(strncmp(buf, "hij", 3) == 0);
+
+  /* bad positions, bad whence values and streams are refused */
+  assert(lseek(fd, -1, SEEK_SET) == -1);
+  assert(lseek(fd, -21, SEEK_END) == -1);
+  assert(lseek(fd, 0, 3) == -1);
+  assert(lseek(0, 0, SEEK_SET) == -1);
+
+  /* the child's descriptor must not move this one */
+  assert(lseek(fd, 5, SEEK_SET) == 5);
+  args[0] = "seek.coff";
+  args[1] = "child";
+  pid = exec("seek.coff", 2, args);
+  assert(pid != -1);
+  assert(join(pid, &status) == 1);
+  assert(status == 0);
+  assert(lseek(fd, 0, SEEK_CUR) == 5);
+  expect(fd, "56789", 5);
+
+  /* opening the file again starts over at the beginning */
+  assert(open(FILENAME) == fd);
+  assert(lseek(fd, 0, SEEK_CUR) == 0);
+  expect(fd, "01234", 5);
+
+  close(fd);
+  unlink(FILENAME);
+
+  printf("seek: all tests passed\n");
+  return 0;
+}
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallLseek		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -205,6 +206,25 @@ int close(int fileDescriptor);
  */
 int unlink(char *name);
 
+/* Values for the whence argument of lseek(). */
+#define SEEK_SET	0
+#define SEEK_CUR	1
+#define SEEK_END	2
+
+/**
+ * Move the file position of fileDescriptor to offset bytes from the start of
+ * the file (whence is SEEK_SET), from the current position (SEEK_CUR), or
+ * from the end of the file (SEEK_END). Each file descriptor has its own
+ * position, so processes reading the same file do not disturb each other.
+ * The position may be set past the end of the file; a later write() there
+ * extends the file.
+ *
+ * Returns the new file position, or -1 if an error occurred. This can happen
+ * if fileDescriptor is invalid or refers to a stream, if whence is invalid,
+ * or if the new position would be negative.
+ */
+int lseek(int fileDescriptor, int offset, int whence);
+
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
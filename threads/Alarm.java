@@ -9,6 +9,10 @@ import nachos.machine.*;
 public class Alarm 
 {
 	PriorityQueue<thread_package> threadQueue = new PriorityQueue<thread_package>();
+	/** Whether the timer only interrupts when it is needed. */
+	private boolean tickless;
+	/** The wake time the one-shot timer was last programmed for. */
+	private long m_programmed_wake = Long.MAX_VALUE;
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -18,6 +22,7 @@ public class Alarm
 	 */
 	public Alarm() 
 	{
+		tickless = Config.getBoolean("Alarm.tickless", false);
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -30,6 +35,12 @@ public class Alarm
 	 * periodically (approximately every 500 clock ticks). Causes the current
 	 * thread to yield, forcing a context switch if there is another thread that
 	 * should be run.
+	 *
+	 * <p>
+	 * In tickless mode (the <tt>Alarm.tickless</tt> configuration key), the
+	 * timer is also programmed to interrupt when the next sleeping thread is
+	 * due, and when no other thread is ready the current thread keeps running
+	 * and the periodic timer is stopped until a thread becomes ready again.
 	 */
 	public void timerInterrupt() 
 	{
@@ -46,9 +57,47 @@ public class Alarm
 				going_on = true;
 			}
 		}
+		if(tickless)
+		{
+			boolean intStatus = Machine.interrupt().disable();
+			long now = Machine.timer().getTime();
+			if(m_programmed_wake <= now) // the one-shot has fired
+			{
+				m_programmed_wake = Long.MAX_VALUE;
+			}
+			if(threadQueue.size() > 0 && threadQueue.peek().wake_time < m_programmed_wake)
+			{
+				m_programmed_wake = threadQueue.peek().wake_time;
+				Machine.timer().scheduleOneShot(m_programmed_wake);
+			}
+			boolean alone = KThread.numReadyThreads() == 0;
+			if(alone) // nothing to preempt for
+			{
+				Machine.timer().setPeriodic(false);
+				Machine.countEvent(Stats.KernelEvent.timerYieldAvoided, 1);
+			}
+			Machine.interrupt().restore(intStatus);
+			if(alone)
+			{
+				return;
+			}
+		}
 		KThread.currentThread().yield();
 	}
 
+	/**
+	 * Called by <tt>KThread.ready()</tt> with interrupts disabled. In
+	 * tickless mode, restarts the periodic timer, since the ready thread may
+	 * need to preempt the current one.
+	 */
+	void threadReadied()
+	{
+		if(tickless)
+		{
+			Machine.timer().setPeriodic(true);
+		}
+	}
+
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
@@ -72,6 +121,11 @@ public class Alarm
 			myPackage.set_wake_thread(curr_thread);
 			myPackage.set_wake_time(wakeTime);
 			threadQueue.offer(myPackage);
+			if(tickless && (wakeTime < m_programmed_wake || m_programmed_wake <= Machine.timer().getTime()))
+			{
+				m_programmed_wake = wakeTime;
+				Machine.timer().scheduleOneShot(wakeTime);
+			}
 			KThread.sleep();
 		}
 	}
@@ -118,11 +172,31 @@ public static void alarmTest1()
 		}
 	    }
 
+	/**
+	 * Sleep, stay busy long enough for the tickless timer to stop, then sleep
+	 * again. The second sleep must still be woken up.
+	 */
+	public static void alarmTest2()
+	{
+		ThreadedKernel.alarm.waitUntil(1000);
+		for(int i=0; i < 2000; ++i)
+		{
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+		long t0 = Machine.timer().getTime();
+		ThreadedKernel.alarm.waitUntil(1000);
+		long t1 = Machine.timer().getTime();
+		Lib.assertTrue(t1 - t0 >= 1000);
+		System.out.println("alarmTest2: waited for " + (t1 - t0) + " ticks after a busy loop");
+	}
+
 	    // Implement more test methods here ...
 
 	    // Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
 	    public static void selfTest() {
 		alarmTest1();
+		alarmTest2();
 
 		// Invoke your other test methods here ...
 	    }
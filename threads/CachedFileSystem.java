@@ -0,0 +1,520 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A file system that keeps recently used blocks of another file system's
+ * files in kernel memory. Reads that hit the cache, and all writes, are
+ * served without touching the underlying file system, and so without paying
+ * its simulated delay.
+ *
+ * <p>
+ * Blocks are evicted in least-recently-used order. When a file is read
+ * sequentially, a miss fetches the next few blocks too, with a single
+ * underlying read. Writes are kept in the cache until the file is closed, the
+ * block is evicted, or the kernel terminates; adjacent dirty blocks are then
+ * written back together.
+ *
+ * <p>
+ * The cache lock is not held while the underlying file system is read or
+ * written. A block being read in or written back is marked busy, and any
+ * access to it waits until the transfer is done; a block being copied to or
+ * from a caller is pinned, so that it cannot be evicted meanwhile.
+ *
+ * <p>
+ * To use it, set <tt>ThreadedKernel.fileSystem</tt> to
+ * <tt>nachos.threads.CachedFileSystem</tt>. The cache then sits in front of
+ * the stub file system. <tt>CachedFileSystem.numBlocks</tt> sets the size of
+ * the cache, and <tt>CachedFileSystem.readAhead</tt> the number of blocks
+ * fetched by a sequential miss.
+ */
+public class CachedFileSystem implements FileSystem {
+	/**
+	 * Allocate a new cache in front of the stub file system.
+	 */
+	public CachedFileSystem() {
+		this(Machine.stubFileSystem());
+	}
+
+	/**
+	 * Allocate a new cache in front of the specified file system.
+	 *
+	 * @param fileSystem the file system whose files to cache.
+	 */
+	public CachedFileSystem(FileSystem fileSystem) {
+		Lib.assertTrue(fileSystem != null);
+
+		this.fileSystem = fileSystem;
+
+		numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+		readAhead = Config.getInteger("CachedFileSystem.readAhead", 4);
+		Lib.assertTrue(numBlocks > 0 && readAhead > 0);
+
+		lock = new Lock();
+		ioDone = new Condition(lock);
+	}
+
+	public OpenFile open(String name, boolean truncate) {
+		lock.acquire();
+
+		CachedFile file = files.get(name);
+
+		if (file == null) {
+			OpenFile backing = fileSystem.open(name, truncate);
+			if (backing == null) {
+				lock.release();
+				return null;
+			}
+
+			file = new CachedFile(name, backing);
+			files.put(name, file);
+		}
+		else if (truncate) {
+			OpenFile truncated = fileSystem.open(name, true);
+			if (truncated == null) {
+				lock.release();
+				return null;
+			}
+			truncated.close();
+
+			file.discard();
+			file.length = 0;
+		}
+
+		file.references++;
+
+		lock.release();
+
+		return new CachedOpenFile(file);
+	}
+
+	public boolean remove(String name) {
+		lock.acquire();
+
+		CachedFile file = files.remove(name);
+		if (file != null)
+			file.discard();
+
+		lock.release();
+
+		return fileSystem.remove(name);
+	}
+
+	/**
+	 * Write every dirty block in the cache back to the underlying file system.
+	 */
+	public void flush() {
+		lock.acquire();
+
+		// writing back releases the lock, so files may be opened meanwhile
+		for (CachedFile file : new ArrayList<CachedFile>(files.values()))
+			file.flush();
+
+		lock.release();
+	}
+
+	/**
+	 * Return the cached block of a file, pinned, reading it from the
+	 * underlying file system on a miss. On a sequential miss, also read the
+	 * blocks following it that are not already cached, as far as there is
+	 * room for them without writing anything back. Must be called with the
+	 * lock held, which is released while waiting for I/O. The caller must
+	 * unpin the block when done with it.
+	 */
+	private Block getBlock(CachedFile file, int number, boolean fill) {
+		Block block;
+
+		while (true) {
+			block = file.blocks.get(number);
+
+			if (block != null) {
+				if (block.busy) {
+					ioDone.sleep();
+					continue;
+				}
+
+				Machine.countEvent(Stats.KernelEvent.fileCacheHit, 1);
+				lru.get(block);
+				block.pins++;
+				return block;
+			}
+
+			// the lock may have been released, so look again
+			if (makeRoom(true))
+				break;
+		}
+
+		Machine.countEvent(Stats.KernelEvent.fileCacheMiss, 1);
+
+		block = addBlock(file, number);
+		block.pins++;
+
+		int fileBlocks = (file.length + blockSize - 1) / blockSize;
+
+		// a block being completely overwritten, or past the end of the file,
+		// does not need to be read
+		if (!fill || number >= fileBlocks)
+			return block;
+
+		int count = 1;
+		if (number == file.nextSequential) {
+			while (count < Math.min(readAhead, numBlocks)
+					&& number + count < fileBlocks
+					&& !file.blocks.containsKey(number + count)
+					&& makeRoom(false)) {
+				addBlock(file, number + count).busy = true;
+				count++;
+			}
+		}
+		block.busy = true;
+
+		lock.release();
+
+		byte[] data = new byte[count * blockSize];
+		int amount = file.backing.read(number * blockSize, data, 0,
+				data.length);
+
+		lock.acquire();
+
+		for (int i = 0; i < count; i++) {
+			// busy blocks are neither evicted nor discarded, so these are
+			// still the blocks added above
+			Block fetched = file.blocks.get(number + i);
+			if (amount > i * blockSize)
+				System.arraycopy(data, i * blockSize, fetched.data, 0, Math
+						.min(blockSize, amount - i * blockSize));
+			fetched.busy = false;
+		}
+		ioDone.wakeAll();
+
+		return block;
+	}
+
+	/**
+	 * Make sure there is room in the cache for one more block, evicting the
+	 * least recently used block that is neither pinned nor busy. A dirty
+	 * victim is written back first, with the lock released, unless
+	 * <i>mayWait</i> is <tt>false</tt>, in which case only clean blocks are
+	 * considered. Must be called with the lock held.
+	 *
+	 * @return <tt>true</tt> if there is room; <tt>false</tt> if there is no
+	 * room without waiting, or if the lock was released while waiting, so that
+	 * the caller must look at the cache again.
+	 */
+	private boolean makeRoom(boolean mayWait) {
+		if (lru.size() < numBlocks)
+			return true;
+
+		Block victim = null;
+		for (Block block : lru.keySet()) {
+			if (block.pins == 0 && !block.busy && (mayWait || !block.dirty)) {
+				victim = block;
+				break;
+			}
+		}
+
+		if (victim == null) {
+			if (mayWait)
+				ioDone.sleep();
+			return false;
+		}
+
+		if (victim.dirty) {
+			victim.file.writeBack(victim.number, victim.number + 1);
+			return false;
+		}
+
+		victim.file.blocks.remove(victim.number);
+		lru.remove(victim);
+		return true;
+	}
+
+	/**
+	 * Add a zero-filled block to the cache, which must have room for it.
+	 * Must be called with the lock held.
+	 */
+	private Block addBlock(CachedFile file, int number) {
+		Lib.assertTrue(lru.size() < numBlocks);
+
+		Block block = new Block(file, number);
+		file.blocks.put(number, block);
+		lru.put(block, block);
+
+		return block;
+	}
+
+	/**
+	 * Let some simulated time pass. Every file access must take time, even
+	 * one served entirely from the cache, so each access is charged the
+	 * kernel tick of re-enabling interrupts. Nothing is charged if interrupts
+	 * are already disabled.
+	 */
+	private void chargeAccess() {
+		if (Machine.interrupt().disable())
+			Machine.interrupt().enable();
+	}
+
+	/**
+	 * The cached state of one underlying file, shared by every open file for
+	 * the same name.
+	 */
+	private class CachedFile {
+		CachedFile(String name, OpenFile backing) {
+			this.name = name;
+			this.backing = backing;
+			this.length = Math.max(0, backing.length());
+		}
+
+		/**
+		 * Write back every dirty block of this file, coalescing runs of
+		 * adjacent blocks into a single write. Returns once no block is
+		 * dirty, waiting for write-backs started by other threads.
+		 */
+		void flush() {
+			while (true) {
+				ArrayList<Integer> dirty = new ArrayList<Integer>();
+				boolean inFlight = false;
+				for (Block block : blocks.values()) {
+					if (block.dirty && !block.busy)
+						dirty.add(block.number);
+					else if (block.dirty)
+						inFlight = true;
+				}
+
+				if (dirty.isEmpty()) {
+					if (!inFlight)
+						return;
+					ioDone.sleep();
+					continue;
+				}
+
+				// write back the first run, then look again, since the
+				// blocks may change while the lock is released
+				Collections.sort(dirty);
+				int first = dirty.get(0);
+				int last = first;
+				for (int i = 1; i < dirty.size() && dirty.get(i) == last + 1; i++)
+					last++;
+
+				writeBack(first, last + 1);
+			}
+		}
+
+		/**
+		 * Write blocks <i>first</i> up to (but not including) <i>end</i>,
+		 * which must all be cached and not busy, back to the underlying file
+		 * and mark them clean. Nothing past the end of the file is written.
+		 * The blocks are busy, and the lock released, during the write.
+		 */
+		void writeBack(int first, int end) {
+			ArrayList<Block> run = new ArrayList<Block>();
+			for (int number = first; number < end; number++) {
+				Block block = blocks.get(number);
+				block.busy = true;
+				run.add(block);
+			}
+
+			int start = first * blockSize;
+			int stop = Math.min(end * blockSize, length);
+
+			if (stop > start) {
+				byte[] data = new byte[stop - start];
+				for (int number = first; number < end; number++) {
+					int offset = (number - first) * blockSize;
+					if (offset < data.length)
+						System.arraycopy(run.get(number - first).data, 0,
+								data, offset, Math.min(blockSize, data.length
+										- offset));
+				}
+
+				lock.release();
+				backing.write(start, data, 0, data.length);
+				lock.acquire();
+			}
+
+			for (Block block : run) {
+				block.dirty = false;
+				block.busy = false;
+			}
+			ioDone.wakeAll();
+		}
+
+		/**
+		 * Drop every block of this file from the cache, without writing any of
+		 * them back. Waits for transfers in progress to finish first.
+		 */
+		void discard() {
+			boolean busy = true;
+			while (busy) {
+				busy = false;
+				for (Block block : blocks.values())
+					busy |= block.busy;
+				if (busy)
+					ioDone.sleep();
+			}
+
+			for (Iterator<Block> i = blocks.values().iterator(); i.hasNext();) {
+				lru.remove(i.next());
+				i.remove();
+			}
+			nextSequential = -1;
+		}
+
+		final String name;
+
+		final OpenFile backing;
+
+		/** The length of the file, including data not yet written back. */
+		int length;
+
+		/** The number of open files referring to this file. */
+		int references = 0;
+
+		/** The block a sequential reader would read next. */
+		int nextSequential = -1;
+
+		final HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+	}
+
+	private class Block {
+		Block(CachedFile file, int number) {
+			this.file = file;
+			this.number = number;
+		}
+
+		final CachedFile file;
+
+		final int number;
+
+		final byte[] data = new byte[blockSize];
+
+		boolean dirty = false;
+
+		/** Set while the block is being read in or written back. */
+		boolean busy = false;
+
+		/** The number of accesses copying to or from the block. */
+		int pins = 0;
+	}
+
+	private class CachedOpenFile extends OpenFileWithPosition {
+		CachedOpenFile(CachedFile file) {
+			super(CachedFileSystem.this, file.name);
+
+			this.file = file;
+		}
+
+		public int read(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+
+			int end = (int) Math.min((long) pos + length, file.length);
+			int amount = 0;
+
+			while (pos + amount < end) {
+				int number = (pos + amount) / blockSize;
+				int blockOffset = (pos + amount) % blockSize;
+				int chunk = Math.min(end - pos - amount, blockSize - blockOffset);
+
+				Block block = getBlock(file, number, true);
+				System.arraycopy(block.data, blockOffset, buf, offset + amount,
+						chunk);
+				block.pins--;
+
+				amount += chunk;
+				file.nextSequential = number + 1;
+			}
+
+			lock.release();
+			chargeAccess();
+
+			return amount;
+		}
+
+		public int write(int pos, byte[] buf, int offset, int length) {
+			if (file == null || pos < 0 || length < 0)
+				return -1;
+
+			lock.acquire();
+
+			int amount = 0;
+
+			while (amount < length) {
+				int number = (pos + amount) / blockSize;
+				int blockOffset = (pos + amount) % blockSize;
+				int chunk = Math.min(length - amount, blockSize - blockOffset);
+
+				Block block = getBlock(file, number, chunk < blockSize);
+				System.arraycopy(buf, offset + amount, block.data, blockOffset,
+						chunk);
+				block.dirty = true;
+				block.pins--;
+
+				amount += chunk;
+				file.length = Math.max(file.length, pos + amount);
+			}
+
+			lock.release();
+			chargeAccess();
+
+			return amount;
+		}
+
+		public int length() {
+			if (file == null)
+				return -1;
+
+			return file.length;
+		}
+
+		public void close() {
+			if (file == null)
+				return;
+
+			lock.acquire();
+
+			file.flush();
+
+			if (--file.references == 0) {
+				file.discard();
+				file.backing.close();
+				if (files.get(file.name) == file)
+					files.remove(file.name);
+			}
+
+			lock.release();
+
+			file = null;
+		}
+
+		private CachedFile file;
+	}
+
+	private FileSystem fileSystem;
+
+	private int numBlocks;
+
+	private int readAhead;
+
+	private Lock lock;
+
+	/** Signalled whenever a transfer to or from the underlying file ends. */
+	private Condition ioDone;
+
+	/** Open files, by name. */
+	private HashMap<String, CachedFile> files = new HashMap<String, CachedFile>();
+
+	/** Every cached block, least recently used first. */
+	private LinkedHashMap<Block, Block> lru = new LinkedHashMap<Block, Block>(
+			16, 0.75f, true);
+
+	private static final int blockSize = Processor.pageSize;
+}
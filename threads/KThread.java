@@ -291,8 +291,13 @@ public class KThread
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
+		if (this != idleThread) {
 			readyQueue.waitForAccess(this);
+			readiedWhileIdle = true;
+			numReady++;
+			if (ThreadedKernel.alarm != null)
+				ThreadedKernel.alarm.threadReadied();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -319,6 +324,17 @@ public class KThread
 		Machine.interrupt().enable();
 	}
 
+	/**
+	 * Return the number of threads waiting in the ready queue, not counting
+	 * the current thread or the idle thread.
+	 */
+	static int numReadyThreads() 
+	{
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return numReady;
+	}
+
 	/**
 	 * Create the idle thread. Whenever there are no threads ready to be run,
 	 * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -332,10 +348,18 @@ public class KThread
 	{
 		Lib.assertTrue(idleThread == null);
 
+		// unless disabled, skip ahead to the next interrupt instead of
+		// yielding once per kernel tick until it occurs, provided no interrupt
+		// has readied a thread since the idle thread was chosen to run
+		final boolean idleSkip = Config.getBoolean("KThread.idleSkip", true);
+
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					if (idleSkip && !readiedWhileIdle)
+						Machine.interrupt().idle();
 					yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
@@ -352,8 +376,13 @@ public class KThread
 	private static void runNextThread() 
 	{
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
+			readiedWhileIdle = false;
+		}
+		else {
+			numReady--;
+		}
 
 		nextThread.run();
 	}
@@ -437,13 +466,70 @@ public class KThread
 			for (int i = 0; i < 5; i++) {
 				System.out.println("*** thread " + which + " looped " + i
 						+ " times");
-				currentThread.yield();
+				KThread.yield();
 			}
 		}
 
 		private int which;
 	}
 
+	private static class YieldBenchmark implements Runnable {
+		YieldBenchmark(int rounds) {
+			this.rounds = rounds;
+		}
+
+		public void run() {
+			for (int i = 0; i < rounds; i++)
+				KThread.yield();
+		}
+
+		private int rounds;
+	}
+
+	/**
+	 * Measure the round-trip latency of <tt>yield()</tt> between two threads,
+	 * each of which yields to the other in turn, so that every round is two
+	 * context switches. Compare the <tt>TCB.backend</tt> settings with this.
+	 * 
+	 * @param rounds the number of round trips to time.
+	 */
+	public static void yieldBenchmark(int rounds) 
+	{
+		// warm up first, so that the timed rounds run compiled code
+		for (int pass = 0; pass < 2; pass++) {
+			KThread partner = new KThread(new YieldBenchmark(rounds));
+			partner.setName("yield benchmark").fork();
+
+			long start = System.nanoTime();
+			new YieldBenchmark(rounds).run();
+			long elapsed = System.nanoTime() - start;
+
+			partner.join();
+
+			if (pass == 1)
+				System.out.println("yield round trip: " + (elapsed / rounds)
+						+ " ns (" + rounds + " rounds)");
+		}
+	}
+
+	/**
+	 * Fork short-lived threads and yield to each in turn, so that thread
+	 * creation, switching and destruction interleave as tightly as they can.
+	 * 
+	 * @param rounds the number of threads to fork.
+	 */
+	private static void forkYieldTest(int rounds) 
+	{
+		for (int i = 0; i < rounds; i++) {
+			new KThread(new Runnable() {
+				public void run() {
+				}
+			}).setName("fork test").fork();
+			KThread.yield();
+		}
+		System.out.println("forkYieldTest: " + rounds + " forks");
+	}
+
 	/**
 	 * Tests whether this module is working.
 	 */
@@ -458,6 +544,14 @@ public class KThread
 		//Condition2.selfTest();
 		Communicator.selfTest();
 		//Condition2.cvTest5();
+
+		int forks = Config.getInteger("KThread.forkYieldTest", 0);
+		if (forks > 0)
+			forkYieldTest(forks);
+
+		int rounds = Config.getInteger("KThread.yieldBenchmark", 0);
+		if (rounds > 0)
+			yieldBenchmark(rounds);
 	}
 
 	private static final char dbgThread = 't';
@@ -508,6 +602,16 @@ public class KThread
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
+
+	/**
+	 * Set when a thread is readied, and cleared when the idle thread is
+	 * chosen to run, so the idle thread only skips time when nothing else
+	 * could run.
+	 */
+	private static boolean readiedWhileIdle = false;
+
+	/** The number of threads in the ready queue. */
+	private static int numReady = 0;
 	
 	private Boolean join_flag = false;
 	private KThread parent_thread = null;
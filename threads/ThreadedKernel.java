@@ -65,6 +65,9 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem instanceof CachedFileSystem)
+			((CachedFileSystem) fileSystem).flush();
+
 		Machine.halt();
 	}
 
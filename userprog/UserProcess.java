@@ -36,6 +36,7 @@ public class UserProcess
 		++m_num_of_process;
 		m_num_process_lock.release();
 		m_file_table = new OpenFile[16];
+		m_file_position = new int[m_file_table.length];
 		m_file_table[0] = UserKernel.console.openForReading();
 		m_file_table[1] = UserKernel.console.openForWriting();
 		m_file_storage_lock.acquire();
@@ -130,16 +131,16 @@ public class UserProcess
 	{
 		int v_page_no = in_v_address / pageSize;
 		int v_offset = in_v_address % pageSize;
-		if(v_page_no >= pageTable.length)
+		if(v_page_no >= pageTable.length())
 		{
 			return -1;
 		}
-		if(pageTable[v_page_no] == null || pageTable[v_page_no].valid != true)
+		if(pageTable.isValid(v_page_no) != true)
 		{
 			return -1;
 		}
-		pageTable[v_page_no].used = true;
-		return pageTable[v_page_no].ppn*pageSize + v_offset;
+		pageTable.setUsed(v_page_no, true);
+		return pageTable.getPpn(v_page_no)*pageSize + v_offset;
 	}
 	
 	/**
@@ -161,12 +162,22 @@ public class UserProcess
 
 		byte[] bytes = new byte[maxLength + 1];
 
-		int bytesRead = readVirtualMemory(vaddr, bytes);
-
-		for (int length = 0; length < bytesRead; length++) 
+		// read a page at a time, stopping as soon as the terminator turns up
+		int length = 0;
+		while(length < bytes.length)
 		{
-			if (bytes[length] == 0)
-				return new String(bytes, 0, length);
+			int chunk = Math.min(bytes.length - length, pageSize - (vaddr + length) % pageSize);
+			int bytesRead = readVirtualMemory(vaddr + length, bytes, length, chunk);
+			for(int i = length; i < length + bytesRead; ++i)
+			{
+				if(bytes[i] == 0)
+					return new String(bytes, 0, i);
+			}
+			if(bytesRead < chunk)
+			{
+				return null;
+			}
+			length += bytesRead;
 		}
 
 		return null;
@@ -201,57 +212,7 @@ public class UserProcess
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) 
 	{
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-		int v_page_no = vaddr / pageSize;
-		if(v_page_no >= numPages || v_page_no < 0)
-		{
-			return 0;
-		}
-		if(pageTable[v_page_no].valid == false)
-		{
-			return 0;
-		}
-		int v_offset = vaddr % pageSize;
-		int possible_size = pageSize - v_offset + (numPages - 1 -v_page_no)*pageSize;
-		int actual_length = Math.min(data.length-offset, Math.min(length, possible_size));
-		int readBytes = 0;
-		int progress_offset = v_offset;
-		int index = offset;
-		int p_address = pageTable[v_page_no].ppn * pageSize + v_offset;
-		if(p_address < 0 || p_address >= memory.length)
-		{
-			return 0;
-		}
-		while(readBytes < actual_length)
-		{
-			data[index] = memory[p_address];
-			++p_address;
-			++progress_offset;
-			++readBytes;
-			++index;
-			if(pageSize == progress_offset)
-			{
-				++v_page_no;
-				if(v_page_no >= numPages)
-				{
-					break;
-				}
-				if(pageTable[v_page_no].valid == false)
-				{
-					break;
-				}
-				p_address = pageTable[v_page_no].ppn * pageSize;
-				progress_offset = 0;
-				if(readBytes < actual_length)
-				{
-					pageTable[v_page_no].used = true;
-				}
-			}
-		}
-
-		return readBytes;
+		return transferVirtualMemory(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -282,61 +243,97 @@ public class UserProcess
 	 * @return the number of bytes successfully transferred.
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) 
+	{
+		return transferVirtualMemory(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Transfer data between this process's virtual memory and the specified
+	 * array, one page at a time. Each page is translated once, through
+	 * <tt>pinPage()</tt>, and its part of the transfer is done with a single
+	 * <tt>System.arraycopy()</tt>. The transfer stops at the first page that
+	 * cannot be accessed.
+	 * 
+	 * @param vaddr the first byte of virtual memory to transfer.
+	 * @param data the array to transfer to or from.
+	 * @param offset the first byte of the array to transfer.
+	 * @param length the number of bytes to transfer.
+	 * @param writing <tt>true</tt> to copy from the array into virtual
+	 * memory, <tt>false</tt> to copy from virtual memory into the array.
+	 * @return the number of bytes successfully transferred.
+	 */
+	protected int transferVirtualMemory(int vaddr, byte[] data, int offset, int length, boolean writing)
 	{
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
-		int v_page_no = vaddr / pageSize;
-		if(v_page_no >= numPages || v_page_no < 0)
+		int transferred = 0;
+		while(transferred < length)
 		{
-			return 0;
+			int v_address = vaddr + transferred;
+			int v_page_no = v_address / pageSize;
+			int v_offset = v_address % pageSize;
+			if(v_address < 0 || v_page_no >= numPages)
+			{
+				break;
+			}
+			int p_page_no = pinPage(v_page_no, writing);
+			if(p_page_no == -1)
+			{
+				break;
+			}
+			int amount = Math.min(length - transferred, pageSize - v_offset);
+			int p_address = p_page_no*pageSize + v_offset;
+			if(writing)
+			{
+				System.arraycopy(data, offset + transferred, memory, p_address, amount);
+				Machine.processor().invalidateDecodedPage(p_page_no);
+			}
+			else
+			{
+				System.arraycopy(memory, p_address, data, offset + transferred, amount);
+			}
+			unpinPage(v_page_no);
+			transferred += amount;
 		}
-		if(pageTable[v_page_no].valid == false || pageTable[v_page_no].readOnly == true)
+		return transferred;
+	}
+
+	/**
+	 * Make the specified virtual page resident for a kernel transfer, and
+	 * mark it used (and dirty, if <i>writing</i>). The page stays where it is
+	 * until the matching <tt>unpinPage()</tt>.
+	 * 
+	 * @param vpn the virtual page to access.
+	 * @param writing <tt>true</tt> if the kernel will write to the page.
+	 * @return the physical page number, or -1 if the page cannot be accessed.
+	 */
+	protected int pinPage(int vpn, boolean writing)
+	{
+		if(pageTable.isValid(vpn) == false || (writing && pageTable.isReadOnly(vpn) == true))
 		{
-			return 0;
+			return -1;
 		}
-		int v_offset = vaddr % pageSize;
-		int possible_size = pageSize - v_offset + (numPages - 1 - v_page_no)*pageSize;
-		int actual_length = Math.min(data.length-offset, Math.min(length, possible_size));
-		int writtenBytes = 0;
-		
-		int progress_offset = v_offset;
-		int index = offset;
-		int p_address = pageTable[v_page_no].ppn * pageSize + v_offset;
-		if(p_address < 0 || p_address >= memory.length)
+		int ppn = pageTable.getPpn(vpn);
+		if(ppn < 0 || ppn >= Machine.processor().getNumPhysPages())
 		{
-			return 0;
+			return -1;
 		}
-		pageTable[v_page_no].dirty = true;
-		pageTable[v_page_no].used = true;
-		while(writtenBytes < actual_length)
+		pageTable.setUsed(vpn, true);
+		if(writing)
 		{
-			memory[p_address] = data[index];
-			++p_address;
-			++progress_offset;
-			++writtenBytes;
-			++index;
-			if(pageSize == progress_offset)
-			{
-				++v_page_no;
-				if(v_page_no >= numPages)
-				{
-					break;
-				}
-				if(pageTable[v_page_no].valid == false || pageTable[v_page_no].readOnly == true)
-				{
-					break;
-				}
-				p_address = pageTable[v_page_no].ppn * pageSize;
-				progress_offset = 0;
-				if(writtenBytes < actual_length)
-				{
-					pageTable[v_page_no].dirty = true;
-					pageTable[v_page_no].used = true;
-				}
-			}
+			pageTable.setDirty(vpn, true);
 		}
-		return writtenBytes;
+		return ppn;
+	}
+
+	/**
+	 * Release a page made resident by <tt>pinPage()</tt>.
+	 * 
+	 * @param vpn the virtual page that was accessed.
+	 */
+	protected void unpinPage(int vpn)
+	{
 	}
 
 	/**
@@ -452,11 +449,11 @@ public class UserProcess
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
-		pageTable = new TranslationEntry[numPages];
+		pageTable = new PageTable(numPages);
 		for(int i=0; i < numPages; ++i)
 		{
 			int p_page_no = UserKernel.m_page_list.removeFirst();
-			pageTable[i] = new TranslationEntry(i, p_page_no, true, false, false, false);
+			pageTable.set(i, p_page_no, true, false, false, false);
 		}
 		m_page_list_lock.release();
 		
@@ -471,10 +468,9 @@ public class UserProcess
 			for (int i = 0; i < section.getLength(); i++) 
 			{
 				int vpn = section.getFirstVPN() + i;
-				TranslationEntry trans_entry = pageTable[vpn];
-				trans_entry.valid = true;
-				trans_entry.readOnly = section.isReadOnly();
-				section.loadPage(i, trans_entry.ppn);
+				pageTable.setValid(vpn, true);
+				pageTable.setReadOnly(vpn, section.isReadOnly());
+				section.loadPage(i, pageTable.getPpn(vpn));
 			}
 		}
 		return true;
@@ -485,13 +481,13 @@ public class UserProcess
 	 */
 	protected void unloadSections() 
 	{
-		for (int i = 0; i < pageTable.length; i++) 
+		for (int i = 0; i < pageTable.length(); i++) 
 		{
-		    if (pageTable[i].valid == true) 
+		    if (pageTable.isValid(i) == true) 
 		    {
 		    		m_page_list_lock.acquire();
-		    		pageTable[i].valid = false; 
-		    		UserKernel.m_page_list.add(pageTable[i].ppn);
+		    		pageTable.setValid(i, false); 
+		    		UserKernel.m_page_list.add(pageTable.getPpn(i));
 		    		m_page_list_lock.release();
 		    }
 		}
@@ -536,9 +532,9 @@ public class UserProcess
 	private int handleHalt() 
 	{
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
-		Lib.assertNotReached("Machine.halt() did not halt machine!");
+		Lib.assertNotReached("Kernel.terminate() did not halt machine!");
 		return 0;
 	}
 
@@ -560,9 +556,11 @@ public class UserProcess
 		}
 		if(child_process.m_exit_val == null)
 		{
+			m_joining = true;
 			child_process.m_process.m_join_lock.acquire();
 			child_process.m_process.m_condition.sleep();
 			child_process.m_process.m_join_lock.release();
+			m_joining = false;
 		}
 		m_children_list.remove(in_pid);
 		if(child_process.m_exit_val == -1) //unhandled exception
@@ -635,6 +633,7 @@ public class UserProcess
 				m_file_storage_lock.release();
 				return -1;
 			}
+			fileChanged(name);
 			fileStorage new_one = new fileStorage(open_file);
 			m_file_storage.put(name, new_one);
 		}
@@ -651,6 +650,7 @@ public class UserProcess
 				if(m_file_table[i] == open_file)
 				{
 					m_file_storage_lock.release();
+					m_file_position[i] = 0; // reopening starts at the beginning again
 					return i; // immediately return a file descriptor
 				}
 			}
@@ -662,6 +662,7 @@ public class UserProcess
 			if(m_file_table[i] == null)
 			{
 				m_file_table[i] = open_file;
+				m_file_position[i] = 0;
 				file_descriptor = i;
 				m_file_storage_lock.acquire();
 				m_file_storage.get(name).reference();
@@ -703,6 +704,7 @@ public class UserProcess
 				if(m_file_table[i] == open_file)
 				{
 					m_file_storage_lock.release();
+					m_file_position[i] = 0; // reopening starts at the beginning again
 					return i; // immediately return a file descriptor
 				}
 			}
@@ -714,6 +716,7 @@ public class UserProcess
 			if(m_file_table[i] == null)
 			{
 				m_file_table[i] = open_file;
+				m_file_position[i] = 0;
 				file_descriptor = i;
 				m_file_storage_lock.acquire();
 				m_file_storage.get(name).reference();
@@ -731,28 +734,36 @@ public class UserProcess
 			return -1;
 		}
 		String name = readVirtualMemoryString(file_vaddr, m_max_length);
-		if(name == null || argc < 0)
+		// argv must fit in one page of the child, so more pointers than that
+		// can never be loaded
+		if(name == null || argc < 0 || argc > pageSize / 4)
 		{
 			return -1;
 		}
-		String file_extension = name.substring(name.length()-5);
-		if(file_extension.equals(".coff") == false)
+		if(name.endsWith(".coff") == false)
 		{
 			return -1;
 		}
 		String argument_list[] = new String[argc]; 
+		byte arg_addrs[] = new byte[argc*4];
+		if(readVirtualMemory(arg_vaddr, arg_addrs) != arg_addrs.length)
+		{
+			return -1;
+		}
 		for(int i=0; i < argc; ++i)
 		{
-			byte arg_addr[] = new byte[4];
-			readVirtualMemory(arg_vaddr+i*4, arg_addr);
-			int vaddr = Lib.bytesToInt(arg_addr,0);
+			int vaddr = Lib.bytesToInt(arg_addrs,i*4);
 			if(validAddress(vaddr) == false)
 			{
 				return -1;
 			}
 			argument_list[i] = readVirtualMemoryString(vaddr, m_max_length);
+			if(argument_list[i] == null)
+			{
+				return -1;
+			}
 		}
-		UserProcess child_process = new UserProcess(); // modified
+		UserProcess child_process = newUserProcess();
 		childProcess new_born = new childProcess(child_process);
 		m_children_list.put(child_process.getPid(), new_born);
 		child_process.setParentProcess(this);
@@ -801,19 +812,43 @@ public class UserProcess
 		{
 			return -1;
 		}
-		byte[] read_buffer = new byte[in_count];
-		opened_file.seek(0);
-		int read_bytes = opened_file.read(read_buffer, 0, in_count);
-		if(read_bytes == -1)
+		boolean is_stream = opened_file.tell() == -1;
+		// stream through the per-process buffer a page at a time, so a huge
+		// count never turns into a huge kernel allocation
+		byte[] io_buffer = getIOBuffer();
+		int total_bytes = 0;
+		while(total_bytes < in_count)
 		{
-			return -1;
-		}
-		int written_bytes = writeVirtualMemory(in_v_addr, read_buffer);
-		if(read_bytes != written_bytes)
-		{
-			return -1;
+			int chunk = Math.min(in_count - total_bytes, io_buffer.length);
+			int read_bytes;
+			if(is_stream)
+			{
+				read_bytes = opened_file.read(io_buffer, 0, chunk);
+			}
+			else
+			{
+				read_bytes = opened_file.read(m_file_position[in_file_descriptor], io_buffer, 0, chunk);
+			}
+			if(read_bytes == -1)
+			{
+				return total_bytes > 0 ? total_bytes : -1;
+			}
+			int written_bytes = writeVirtualMemory(in_v_addr + total_bytes, io_buffer, 0, read_bytes);
+			total_bytes += written_bytes;
+			if(is_stream == false)
+			{
+				m_file_position[in_file_descriptor] += written_bytes;
+			}
+			if(written_bytes != read_bytes)
+			{
+				return total_bytes > 0 ? total_bytes : -1;
+			}
+			if(read_bytes < chunk) // end of file, or nothing more available yet
+			{
+				break;
+			}
 		}
-		return written_bytes;
+		return total_bytes;
 	}
 	
 	private int handleWrite(int in_file_descriptor, int in_v_addr, int in_count)
@@ -831,14 +866,110 @@ public class UserProcess
 		{
 			return -1;
 		}
-		byte write_buffer[] = new byte[in_count];
-		int read_bytes = readVirtualMemory(in_v_addr, write_buffer, 0, in_count);
-		int written_bytes = m_file_table[in_file_descriptor].write(write_buffer, 0, read_bytes);
-		if(written_bytes < in_count)
+		boolean is_stream = opened_file.tell() == -1;
+		byte[] io_buffer = getIOBuffer();
+		int total_bytes = 0;
+		while(total_bytes < in_count)
+		{
+			int chunk = Math.min(in_count - total_bytes, io_buffer.length);
+			int read_bytes = readVirtualMemory(in_v_addr + total_bytes, io_buffer, 0, chunk);
+			int written_bytes;
+			if(is_stream)
+			{
+				written_bytes = opened_file.write(io_buffer, 0, read_bytes);
+			}
+			else
+			{
+				written_bytes = opened_file.write(m_file_position[in_file_descriptor], io_buffer, 0, read_bytes);
+			}
+			if(written_bytes > 0)
+			{
+				total_bytes += written_bytes;
+				if(is_stream == false)
+				{
+					m_file_position[in_file_descriptor] += written_bytes;
+					fileChanged(opened_file.getName());
+				}
+			}
+			if(read_bytes < chunk || written_bytes < read_bytes) // bad address or file error
+			{
+				return total_bytes > 0 ? total_bytes : -1;
+			}
+		}
+		return total_bytes;
+	}
+	
+	/**
+	 * Called whenever a syscall creates, writes or removes a file. Does
+	 * nothing here; subclasses that cache file contents override it.
+	 * 
+	 * @param name the name of the file.
+	 */
+	protected void fileChanged(String name)
+	{
+	}
+	
+	/**
+	 * Return the buffer that read and write syscalls stream data through,
+	 * allocating it on first use. Its size bounds the kernel memory a single
+	 * syscall can use, however large a count the program passes.
+	 * 
+	 * @return this process's I/O buffer.
+	 */
+	private byte[] getIOBuffer()
+	{
+		if(m_io_buffer == null)
+		{
+			m_io_buffer = new byte[pageSize];
+		}
+		return m_io_buffer;
+	}
+	
+	/**
+	 * Handle the lseek() system call. Moves the position of a file descriptor
+	 * to <i>in_offset</i> bytes from the start of the file, the current
+	 * position, or the end of the file, as selected by <i>in_whence</i>.
+	 * Streams have no position and cannot be seeked.
+	 * 
+	 * @return the new position, or -1 on error.
+	 */
+	private int handleLseek(int in_file_descriptor, int in_offset, int in_whence)
+	{
+		if(validFileDescriptor(in_file_descriptor) == false)
+		{
+			return -1;
+		}
+		OpenFile opened_file = m_file_table[in_file_descriptor];
+		if(opened_file.tell() == -1)
 		{
 			return -1;
 		}
-		return written_bytes;
+		long base;
+		switch(in_whence)
+		{
+			case seekSet:
+				base = 0;
+				break;
+			case seekCurrent:
+				base = m_file_position[in_file_descriptor];
+				break;
+			case seekEnd:
+				base = opened_file.length();
+				if(base < 0)
+				{
+					return -1;
+				}
+				break;
+			default:
+				return -1;
+		}
+		long new_position = base + in_offset;
+		if(new_position < 0 || new_position > Integer.MAX_VALUE)
+		{
+			return -1;
+		}
+		m_file_position[in_file_descriptor] = (int) new_position;
+		return (int) new_position;
 	}
 	
 	private int handleUnlink(int in_vaddr)
@@ -852,6 +983,7 @@ public class UserProcess
 		{
 			return -1;
 		}
+		fileChanged(file_name);
 		boolean is_closed = true;
 		int file_descriptor = -1;
 		for(int i=0; i < m_file_table.length; ++i)
@@ -912,7 +1044,9 @@ public class UserProcess
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallLseek = 13;
+
+	private static final int seekSet = 0, seekCurrent = 1, seekEnd = 2;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -966,6 +1100,10 @@ public class UserProcess
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  lseek(int fd, int offset, int whence);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -999,6 +1137,8 @@ public class UserProcess
 				return handleClose(a0);
 			case syscallUnlink:
 				return handleUnlink(a0);
+			case syscallLseek:
+				return handleLseek(a0, a1, a2);
 			default:
 				Lib.debug(dbgProcess, "Unknown syscall " + syscall);
 				Lib.assertNotReached("Unknown system call!");
@@ -1052,11 +1192,16 @@ public class UserProcess
 	{
 		return m_exited;
 	}
+	/** Whether this process is blocked in <tt>join</tt>, waiting for a child. */
+	public boolean isJoining()
+	{
+		return m_joining;
+	}
 	/** The program being run by this process. */
 	protected Coff coff;
 
-	/** This process's page table. */
-	protected TranslationEntry[] pageTable;
+	/** This process's page table, packed one word per page. */
+	protected PageTable pageTable;
 
 	/** The number of contiguous pages occupied by the program. */
 	protected int numPages;
@@ -1074,9 +1219,12 @@ public class UserProcess
 	protected int m_pid;
 	protected int m_page_needed;
 	private OpenFile[] m_file_table;
+	private int[] m_file_position;
+	private byte[] m_io_buffer = null;
 	private UserProcess m_parent_process = null;
 	protected final int m_max_length = 256;
 	private boolean m_exited = false;
+	private volatile boolean m_joining = false;
 	private Lock m_join_lock = new Lock();
 	private Condition m_condition = new Condition(m_join_lock);
 	protected HashMap<Integer, childProcess> m_children_list = new HashMap<Integer, childProcess>();
@@ -0,0 +1,68 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Each frame
+ * has an 8-bit age. Whenever a victim is needed, every age is shifted right
+ * with the frame's reference bit shifted in at the top, the reference bits
+ * are cleared, and the frame with the lowest age is evicted. Ties go to a
+ * clean frame, then to the first frame after the previous victim.
+ *
+ * <p>
+ * Nachos has no periodic hook into the page tables, so ages advance once per
+ * eviction rather than once per clock tick; under memory pressure the two
+ * are close.
+ */
+public class AgingPolicy extends PageReplacementPolicy
+{
+	public AgingPolicy()
+	{
+		m_age = new int[Machine.processor().getNumPhysPages()];
+	}
+
+	public int findVictim(infoCenter[] in_frames)
+	{
+		int length = in_frames.length;
+		for(int i=0; i < length; ++i)
+		{
+			if(in_frames[i].pinned == false)
+			{
+				m_age[i] = (m_age[i] >>> 1) | (in_frames[i].getRefBit() ? 0x80 : 0);
+				in_frames[i].clearRefBit();
+			}
+		}
+		int victim = -1;
+		boolean victim_dirty = true;
+		for(int i=0; i < length; ++i)
+		{
+			int frame = (m_hand + i) % length;
+			if(in_frames[frame].pinned == true)
+			{
+				continue;
+			}
+			boolean dirty = in_frames[frame].isDirty();
+			if(victim == -1 || m_age[frame] < m_age[victim]
+					|| (m_age[frame] == m_age[victim] && victim_dirty && dirty == false))
+			{
+				victim = frame;
+				victim_dirty = dirty;
+			}
+		}
+		m_hand = (victim + 1) % length;
+		return victim;
+	}
+
+	public void pageLoaded(int in_ppn)
+	{
+		m_age[in_ppn] = 0x80;
+	}
+
+	public String getName()
+	{
+		return "aging";
+	}
+
+	private int m_hand = 0;
+	private int[] m_age;
+}
@@ -0,0 +1,31 @@
+package nachos.vm;
+
+/**
+ * The clock algorithm: a single hand sweeps the frames, clearing reference
+ * bits, and stops at the first frame that was not referenced since the hand
+ * last passed it.
+ */
+public class ClockPolicy extends PageReplacementPolicy
+{
+	public int findVictim(infoCenter[] in_frames)
+	{
+		while(in_frames[m_hand].getRefBit() == true || in_frames[m_hand].pinned == true)
+		{
+			if(in_frames[m_hand].pinned == false)
+			{
+				in_frames[m_hand].clearRefBit();
+			}
+			m_hand = (m_hand + 1) % in_frames.length;
+		}
+		int victim = m_hand;
+		m_hand = (m_hand + 1) % in_frames.length;
+		return victim;
+	}
+
+	public String getName()
+	{
+		return "clock";
+	}
+
+	private int m_hand = 0;
+}
@@ -0,0 +1,68 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A policy for choosing which physical page <tt>VMKernel</tt> evicts when a
+ * page fault finds no free frame. The policy is selected by setting
+ * <tt>VMKernel.replacementPolicy</tt> to the name of a subclass, such as
+ * <tt>nachos.vm.WSClockPolicy</tt>; the default is <tt>ClockPolicy</tt>.
+ *
+ * <p>
+ * Every method is called with <tt>VMKernel.m_frame_lock</tt> held. A policy may
+ * clear reference bits while it searches, but must never choose a pinned
+ * frame.
+ */
+public abstract class PageReplacementPolicy
+{
+	/**
+	 * Allocate a new policy.
+	 */
+	public PageReplacementPolicy()
+	{
+	}
+
+	/**
+	 * Choose a frame to evict. At least one frame is not pinned.
+	 *
+	 * @param in_frames the inverted page table, indexed by physical page.
+	 * @return the physical page to evict.
+	 */
+	public abstract int findVictim(infoCenter[] in_frames);
+
+	/**
+	 * Called when a virtual page has been loaded into a frame.
+	 *
+	 * @param in_ppn the physical page that was loaded.
+	 */
+	public void pageLoaded(int in_ppn)
+	{
+	}
+
+	/**
+	 * Return the name this policy is reported under.
+	 */
+	public abstract String getName();
+
+	/**
+	 * Print how well this policy did: the page faults taken while it was in
+	 * use, the pages it evicted, and how many of those had to be written to
+	 * swap first.
+	 */
+	public void print()
+	{
+		System.out.println("Replacement (" + getName() + "): page faults "
+				+ numPageFaults + ", evictions " + numEvictions
+				+ ", writebacks " + numWritebacks);
+	}
+
+	/**
+	 * The number of faults on non-resident pages handled while this policy
+	 * was in use, including those taken by the kernel on behalf of a process.
+	 */
+	public int numPageFaults = 0;
+	/** The number of pages evicted. */
+	public int numEvictions = 0;
+	/** The number of evicted pages that were dirty and written to swap. */
+	public int numWritebacks = 0;
+}
@@ -0,0 +1,28 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Evict a frame chosen uniformly at random from those not pinned. Useful as a
+ * baseline for the other policies; runs are repeatable for a given
+ * <tt>-s</tt> seed.
+ */
+public class RandomPolicy extends PageReplacementPolicy
+{
+	public int findVictim(infoCenter[] in_frames)
+	{
+		while(true)
+		{
+			int frame = Lib.random(in_frames.length);
+			if(in_frames[frame].pinned == false)
+			{
+				return frame;
+			}
+		}
+	}
+
+	public String getName()
+	{
+		return "random";
+	}
+}
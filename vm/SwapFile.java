@@ -0,0 +1,180 @@
+package nachos.vm;
+
+import java.util.BitSet;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * The swap space used by <tt>VMKernel</tt> to hold evicted dirty pages. Swap
+ * is divided into page-sized slots. A bitmap records which slots are in use,
+ * and each slot in use records the process and virtual page it holds, so that
+ * a process's slots can all be released when it exits.
+ */
+public class SwapFile
+{
+	/**
+	 * Allocate a new swap space stored in the specified file.
+	 *
+	 * @param in_file the file to keep swapped-out pages in.
+	 */
+	public SwapFile(OpenFile in_file)
+	{
+		m_file = in_file;
+		m_lock = new Lock();
+	}
+
+	/**
+	 * Write a physical page out to a free slot.
+	 *
+	 * @param in_ppn the physical page to write.
+	 * @param in_pid the process the page belongs to.
+	 * @param in_vpn the virtual page it holds in that process.
+	 * @return the slot the page was written to.
+	 */
+	public int swapOut(int in_ppn, int in_pid, int in_vpn)
+	{
+		m_lock.acquire();
+		int slot = allocateSlot(in_pid, in_vpn);
+		m_lock.release();
+
+		Machine.countEvent(Stats.KernelEvent.swapWrite, 1);
+		int written = m_file.write(slot*pageSize, Machine.processor().getMemory(), in_ppn*pageSize, pageSize);
+		Lib.assertTrue(written == pageSize, "swap write failed");
+		return slot;
+	}
+
+	/**
+	 * Write several physical pages out to free slots. The pages are copied
+	 * before any of them is written, and pages that land in adjacent slots
+	 * are written together.
+	 *
+	 * @param in_ppns the physical pages to write.
+	 * @param in_pids the process each page belongs to.
+	 * @param in_vpns the virtual page each holds in that process.
+	 * @param in_count the number of pages to write.
+	 * @return the slot each page was written to.
+	 */
+	public int[] swapOut(int[] in_ppns, int[] in_pids, int[] in_vpns, int in_count)
+	{
+		int[] slots = new int[in_count];
+		m_lock.acquire();
+		for(int i=0; i < in_count; ++i)
+		{
+			slots[i] = allocateSlot(in_pids[i], in_vpns[i]);
+		}
+		m_lock.release();
+
+		byte[] memory = Machine.processor().getMemory();
+		byte[] data = new byte[in_count*pageSize];
+		for(int i=0; i < in_count; ++i)
+		{
+			System.arraycopy(memory, in_ppns[i]*pageSize, data, i*pageSize, pageSize);
+		}
+		Machine.countEvent(Stats.KernelEvent.swapWrite, in_count);
+		for(int first=0; first < in_count;)
+		{
+			int end = first + 1;
+			while(end < in_count && slots[end] == slots[end - 1] + 1)
+			{
+				++end;
+			}
+			int length = (end - first)*pageSize;
+			int written = m_file.write(slots[first]*pageSize, data, first*pageSize, length);
+			Lib.assertTrue(written == length, "swap write failed");
+			first = end;
+		}
+		return slots;
+	}
+
+	/**
+	 * Read a slot back into a physical page and free the slot.
+	 *
+	 * @param in_slot the slot to read.
+	 * @param in_ppn the physical page to read it into.
+	 */
+	public void swapIn(int in_slot, int in_ppn)
+	{
+		Machine.countEvent(Stats.KernelEvent.swapRead, 1);
+		int read = m_file.read(in_slot*pageSize, Machine.processor().getMemory(), in_ppn*pageSize, pageSize);
+		Lib.assertTrue(read == pageSize, "swap read failed");
+		Machine.processor().invalidateDecodedPage(in_ppn);
+		free(in_slot);
+	}
+
+	/**
+	 * Free a slot without reading it.
+	 *
+	 * @param in_slot the slot to free.
+	 */
+	public void free(int in_slot)
+	{
+		m_lock.acquire();
+		Lib.assertTrue(m_used_slots.get(in_slot));
+		m_used_slots.clear(in_slot);
+		m_lock.release();
+	}
+
+	/**
+	 * Free every slot that holds a page of the specified process.
+	 *
+	 * @param in_pid the process whose slots to free.
+	 */
+	public void freeAll(int in_pid)
+	{
+		m_lock.acquire();
+		for(int slot = m_used_slots.nextSetBit(0); slot >= 0; slot = m_used_slots.nextSetBit(slot + 1))
+		{
+			if(m_owner_pid[slot] == in_pid)
+			{
+				m_used_slots.clear(slot);
+			}
+		}
+		m_lock.release();
+	}
+
+	/**
+	 * Mark the lowest free slot used by the specified page and return it.
+	 * Must be called with the lock held.
+	 */
+	private int allocateSlot(int in_pid, int in_vpn)
+	{
+		int slot = m_used_slots.nextClearBit(0);
+		m_used_slots.set(slot);
+		if(slot >= m_owner_pid.length)
+		{
+			int[] owner_pid = new int[Math.max(slot + 1, m_owner_pid.length*2)];
+			int[] owner_vpn = new int[owner_pid.length];
+			System.arraycopy(m_owner_pid, 0, owner_pid, 0, m_owner_pid.length);
+			System.arraycopy(m_owner_vpn, 0, owner_vpn, 0, m_owner_vpn.length);
+			m_owner_pid = owner_pid;
+			m_owner_vpn = owner_vpn;
+		}
+		m_owner_pid[slot] = in_pid;
+		m_owner_vpn[slot] = in_vpn;
+		return slot;
+	}
+
+	/**
+	 * Return the process whose page a slot in use holds.
+	 */
+	public int getOwnerPid(int in_slot)
+	{
+		return m_owner_pid[in_slot];
+	}
+
+	/**
+	 * Return the virtual page a slot in use holds.
+	 */
+	public int getOwnerVpn(int in_slot)
+	{
+		return m_owner_vpn[in_slot];
+	}
+
+	private OpenFile m_file;
+	private Lock m_lock;
+	private BitSet m_used_slots = new BitSet();
+	private int[] m_owner_pid = new int[16];
+	private int[] m_owner_vpn = new int[16];
+	private static final int pageSize = Processor.pageSize;
+}
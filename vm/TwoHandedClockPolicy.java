@@ -0,0 +1,48 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The two-handed clock algorithm. The front hand clears reference bits and a
+ * back hand, trailing it by a fixed number of frames, evicts the first frame
+ * not referenced since the front hand passed. A page therefore survives only
+ * if it is used within the time the hands take to cover the spread, rather
+ * than within a whole revolution.
+ *
+ * <p>
+ * <tt>TwoHandedClockPolicy.handSpread</tt> sets the distance between the
+ * hands; by default it is half the frames.
+ */
+public class TwoHandedClockPolicy extends PageReplacementPolicy
+{
+	public int findVictim(infoCenter[] in_frames)
+	{
+		int length = in_frames.length;
+		if(m_spread < 0)
+		{
+			m_spread = Config.getInteger("TwoHandedClockPolicy.handSpread", length/2);
+			m_spread = Math.max(0, Math.min(m_spread, length - 1));
+		}
+		while(true)
+		{
+			int back = (m_front + length - m_spread) % length;
+			if(in_frames[m_front].pinned == false)
+			{
+				in_frames[m_front].clearRefBit();
+			}
+			m_front = (m_front + 1) % length;
+			if(in_frames[back].pinned == false && in_frames[back].getRefBit() == false)
+			{
+				return back;
+			}
+		}
+	}
+
+	public String getName()
+	{
+		return "two-handed clock";
+	}
+
+	private int m_front = 0;
+	private int m_spread = -1;
+}
@@ -1,5 +1,8 @@
 package nachos.vm;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 
 import nachos.machine.*;
@@ -26,16 +29,65 @@ public class VMKernel extends UserKernel
 	public void initialize(String[] args) 
 	{
 		super.initialize(args);
-		m_swap_file = VMKernel.fileSystem.open("mySwap", true);
+		m_swap = new SwapFile(VMKernel.fileSystem.open("mySwap", true));
 		m_inverted_table = new infoCenter[Machine.processor().getNumPhysPages()];
 		for(int i=0; i < Machine.processor().getNumPhysPages(); ++i)
 		{
 			m_inverted_table[i] = new infoCenter();
 		}
 		m_page_fault_lock = new Lock();
-		m_lock = new Lock();
-		m_swap_lock = new Lock();
-		m_condition = new Condition(m_lock);
+		m_frame_lock = new Lock();
+		m_frame_available = new Condition(m_frame_lock);
+		m_transit_condition = new Condition(m_frame_lock);
+		m_zero_condition = new Condition(m_frame_lock);
+		
+		m_policy = (PageReplacementPolicy) Lib.constructObject(Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+		
+		m_pageout_low_water = Config.getInteger("VMKernel.pageoutLowWater", 0);
+		m_pageout_batch = Config.getInteger("VMKernel.pageoutBatch", 4);
+		m_pageout_condition = new Condition(m_frame_lock);
+		if(m_pageout_low_water > 0 && m_pageout_batch > 0)
+		{
+			KThread daemon = new KThread(new Runnable() {
+				public void run()
+				{
+					pageOut();
+				}
+			}).setName("pageout daemon");
+			daemon.fork();
+		}
+		
+		m_resume_condition = new Condition(m_frame_lock);
+		m_sample_interval = Config.getInteger("VMKernel.sampleInterval", 0);
+		m_working_set_window = Config.getInteger("VMKernel.workingSetWindow", 4);
+		m_pff_high = Config.getInteger("VMKernel.pffHigh", 2);
+		m_pff_low = Config.getInteger("VMKernel.pffLow", 0);
+		if(m_sample_interval > 0)
+		{
+			KThread scheduler = new KThread(new Runnable() {
+				public void run()
+				{
+					scheduleMemory();
+				}
+			}).setName("memory scheduler");
+			scheduler.fork();
+		}
+		
+		// fetching ahead evicts other pages, so keep it small on small machines
+		m_max_fault_around = Config.getInteger("VMKernel.maxFaultAround",
+				Math.min(8, Machine.processor().getNumPhysPages()/8));
+		
+		m_zero_pool_size = Config.getInteger("VMKernel.zeroPoolSize", 0);
+		if(m_zero_pool_size > 0)
+		{
+			KThread zeroer = new KThread(new Runnable() {
+				public void run()
+				{
+					zeroFrames();
+				}
+			}).setName("page zeroer");
+			zeroer.fork();
+		}
 	}
 
 	/**
@@ -59,59 +111,391 @@ public class VMKernel extends UserKernel
 	 */
 	public void terminate() 
 	{
+		m_policy.print();
+		if(m_sample_interval > 0)
+		{
+			System.out.println("Memory scheduler: suspensions " + m_suspensions);
+		}
 		super.terminate();
 	}
 	
-	public static int clockAlgorithm()
+	/**
+	 * Evict a page chosen by the replacement policy, writing it to swap first
+	 * if it is dirty, and return its frame, pinned. Must be called with
+	 * <tt>m_frame_lock</tt> held; the lock is released during the swap write,
+	 * while the page is marked as in transit so that its process waits for
+	 * the write if it faults on the page.
+	 */
+	public static int evictPage()
 	{
-		while(m_inverted_table[victim].getRefBit() == true || m_inverted_table[victim].pinned == true)
+		int toEvict = m_policy.findVictim(m_inverted_table);
+		m_policy.numEvictions++;
+		infoCenter info = m_inverted_table[toEvict];
+		info.pin();
+		if(info.sharedKey != null) // a clean executable page, which can be read again
 		{
-			if(m_inverted_table[victim].pinned == false)
+			m_shared_pages.remove(info.sharedKey);
+			info.sharedKey = null;
+			info.evictAll(toEvict);
+		}
+		else if(info.isDirty())
+		{
+			m_policy.numWritebacks++;
+			VMProcess owner = info.process;
+			int vpn = info.vpn;
+			if(owner.getSwapSlot(vpn) != -1) // a copy written before it was dirtied again
 			{
-				m_inverted_table[victim].clearRefBit();
+				m_swap.free(owner.getSwapSlot(vpn));
 			}
-			victim = (victim + 1) % m_inverted_table.length;
+			owner.youAreEvicted(vpn);
+			owner.setSwapSlot(vpn, VMProcess.slotInTransit);
+			owner.pageOutStarted();
+			m_frame_lock.release();
+			int swap_page = m_swap.swapOut(toEvict, owner.getPid(), vpn);
+			m_frame_lock.acquire();
+			owner.setSwapSlot(vpn, swap_page);
+			owner.pageOutFinished();
 		}
-		int toEvict = victim;
-		victim = (victim + 1) % m_inverted_table.length;
-		if(m_inverted_table[toEvict].process.getDirtyBit(m_inverted_table[toEvict].vpn))
+		else
 		{
-			int swap_page = writeToSwap(toEvict);
-			m_inverted_table[toEvict].process.setVpn(m_inverted_table[toEvict].vpn, swap_page);
+			info.evictAll(toEvict);
 		}
-		m_inverted_table[toEvict].process.youAreEvicted(m_inverted_table[toEvict].vpn);
+		Machine.processor().invalidateDecodedPage(toEvict);
 		return toEvict;
 	}
 	
-	public static int writeToSwap(int p_page_no)
+	/**
+	 * Take a run of <i>in_count</i> free frames starting at a multiple of
+	 * <i>in_count</i>, from the free list and the pool of zeroed frames.
+	 * Must be called with <tt>m_frame_lock</tt> held.
+	 *
+	 * @return the first frame of the run, or -1 if there is no such run.
+	 */
+	public static int allocateFrameRun(int in_count)
 	{
-		int p_address = p_page_no*pageSize;
-		int swap_page = -1;
-		m_swap_lock.acquire();
-		if(m_free_swap_list.size() > 0)
+		boolean[] free = new boolean[m_inverted_table.length];
+		for(int frame : m_page_list)
 		{
-			swap_page = m_free_swap_list.removeFirst();
+			free[frame] = true;
 		}
-		else
+		for(int frame : m_zeroed_frames)
+		{
+			free[frame] = true;
+		}
+		for(int first=0; first + in_count <= free.length; first += in_count)
 		{
-			swap_page = numOfSwap;
-			++numOfSwap;
+			int frame = first;
+			while(frame < first + in_count && free[frame])
+			{
+				++frame;
+			}
+			if(frame < first + in_count)
+			{
+				continue;
+			}
+			for(frame = first; frame < first + in_count; ++frame)
+			{
+				if(m_page_list.remove(Integer.valueOf(frame)) == false)
+				{
+					m_zeroed_frames.remove(Integer.valueOf(frame));
+				}
+			}
+			return first;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Wake the pageout daemon if fewer than its low-water mark of frames can
+	 * be reclaimed without a swap write. Must be called with <tt>m_frame_lock</tt>
+	 * held.
+	 */
+	public static void wakePageout()
+	{
+		if(m_pageout_low_water > 0 && countCleanFrames() < m_pageout_low_water)
+		{
+			m_pageout_condition.wake();
+		}
+	}
+	
+	/**
+	 * Count the frames that are free, or hold a clean page that is neither
+	 * pinned nor recently referenced.
+	 */
+	private static int countCleanFrames()
+	{
+		int count = m_page_list.size() + m_zeroed_frames.size();
+		for(int i=0; i < m_inverted_table.length; ++i)
+		{
+			infoCenter info = m_inverted_table[i];
+			if(info.pinned == false && info.process != null && info.process.isMapped(info.vpn, i)
+					&& info.isDirty() == false && info.getRefBit() == false)
+			{
+				++count;
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Body of the pageout daemon. While too few frames can be reclaimed
+	 * without a swap write, write dirty pages that have not been referenced
+	 * recently to swap in batches, leaving them resident but clean, so that
+	 * evicting them later costs nothing. The pages are pinned while the batch
+	 * is written, and <tt>m_frame_lock</tt> is released so that faults proceed
+	 * meanwhile. A page stored to again during the write is simply dirty
+	 * again.
+	 *
+	 * <p>
+	 * The daemon only runs if <tt>VMKernel.pageoutLowWater</tt> is set.
+	 */
+	private static void pageOut()
+	{
+		ThreadedKernel.scheduler.decreasePriority();
+		
+		int[] ppns = new int[m_pageout_batch];
+		int[] pids = new int[m_pageout_batch];
+		int[] vpns = new int[m_pageout_batch];
+		m_frame_lock.acquire();
+		while(true)
+		{
+			int count = 0;
+			if(countCleanFrames() < m_pageout_low_water)
+			{
+				for(int i=0; i < m_inverted_table.length && count < m_pageout_batch; ++i)
+				{
+					int frame = m_pageout_hand;
+					m_pageout_hand = (m_pageout_hand + 1) % m_inverted_table.length;
+					infoCenter info = m_inverted_table[frame];
+					if(info.pinned == false && info.process != null && info.process.isMapped(info.vpn, frame)
+							&& info.isDirty() == true && info.getRefBit() == false)
+					{
+						info.pin();
+						info.process.clearDirtyBit(info.vpn);
+						info.process.pageOutStarted();
+						ppns[count] = frame;
+						pids[count] = info.process.getPid();
+						vpns[count] = info.vpn;
+						++count;
+					}
+				}
+			}
+			if(count == 0)
+			{
+				m_pageout_condition.sleep();
+				continue;
+			}
+			
+			m_frame_lock.release();
+			int[] slots = m_swap.swapOut(ppns, pids, vpns, count);
+			m_frame_lock.acquire();
+			
+			for(int i=0; i < count; ++i)
+			{
+				infoCenter info = m_inverted_table[ppns[i]];
+				if(info.process.getSwapSlot(info.vpn) != -1)
+				{
+					m_swap.free(info.process.getSwapSlot(info.vpn));
+				}
+				info.process.setSwapSlot(info.vpn, slots[i]);
+				info.process.pageOutFinished();
+				info.unpin();
+			}
 		}
-		m_swap_lock.release();
-		m_swap_file.write(swap_page*pageSize, memory, p_address, pageSize);
-		return swap_page;
 	}
+	
+	/**
+	 * Body of the memory scheduler thread. Every <tt>sampleInterval</tt>
+	 * ticks it samples each process's working set and page fault rate. When
+	 * the working sets of the running processes no longer fit in memory and
+	 * some process faults at <tt>pffHigh</tt> faults per interval or more,
+	 * the lowest priority running process is suspended, so that the rest can
+	 * keep their pages. A suspended process, highest priority first, is
+	 * resumed once its working set fits beside the others', or the others
+	 * fault no more than <tt>pffLow</tt> times per interval. One process is
+	 * always left running. A process blocked in <tt>join</tt> makes no demand
+	 * on memory and is never chosen for suspension.
+	 *
+	 * <p>
+	 * The scheduler only runs if <tt>VMKernel.sampleInterval</tt> is set.
+	 */
+	private static void scheduleMemory()
+	{
+		while(true)
+		{
+			ThreadedKernel.alarm.waitUntil(m_sample_interval);
+			
+			m_frame_lock.acquire();
+			++m_sample;
+			int demand = 0, max_fault_rate = 0, running = 0;
+			VMProcess lowest = null, highest_suspended = null;
+			for(VMProcess process : m_processes)
+			{
+				process.sampleWorkingSet(m_sample, m_working_set_window);
+				if(process.isSuspended())
+				{
+					if(highest_suspended == null || comparePriority(process, highest_suspended) > 0)
+					{
+						highest_suspended = process;
+					}
+					continue;
+				}
+				if(process.isJoining()) // waiting for a child, which does the work
+				{
+					continue;
+				}
+				++running;
+				demand += process.getWorkingSet();
+				max_fault_rate = Math.max(max_fault_rate, process.getFaultRate());
+				if(lowest == null || comparePriority(process, lowest) < 0)
+				{
+					lowest = process;
+				}
+			}
+			int frames = Machine.processor().getNumPhysPages();
+			if(running > 1 && demand > frames && max_fault_rate >= m_pff_high)
+			{
+				lowest.setSuspended(true);
+				++m_suspensions;
+			}
+			else if(highest_suspended != null && (running == 0
+					|| demand + highest_suspended.getWorkingSet() <= frames
+					|| max_fault_rate <= m_pff_low))
+			{
+				highest_suspended.setSuspended(false);
+			}
+			m_frame_lock.release();
+		}
+	}
+	
+	/**
+	 * Compare the priorities of two processes; between equal priorities, the
+	 * older process ranks higher.
+	 */
+	private static int comparePriority(VMProcess in_first, VMProcess in_second)
+	{
+		int difference = in_first.getPriority() - in_second.getPriority();
+		if(difference != 0)
+		{
+			return difference;
+		}
+		return in_second.getPid() - in_first.getPid();
+	}
+	
+	/**
+	 * Return the key under which a page of a section of an executable is kept
+	 * in <tt>m_shared_pages</tt>. The key includes the version of the file, so
+	 * that pages loaded before the file changed are never shared again. Must
+	 * be called with <tt>m_frame_lock</tt> held.
+	 */
+	public static String sharedPageKey(String in_executable, CoffSection in_section, int in_spn)
+	{
+		Integer version = m_executable_versions.get(in_executable);
+		if(version == null)
+		{
+			version = 0;
+			m_executable_versions.put(in_executable, version);
+		}
+		return in_executable + "#" + version + ":" + in_section.getName() + ":" + in_spn;
+	}
+	
+	/**
+	 * Note that an executable has been written, recreated or removed. Its
+	 * pages are dropped from <tt>m_shared_pages</tt>, so that later faults
+	 * load them from the new file; processes already mapping them keep their
+	 * frames. Must be called with <tt>m_frame_lock</tt> held.
+	 */
+	public static void executableChanged(String in_executable)
+	{
+		Integer version = m_executable_versions.get(in_executable);
+		if(version == null) // never shared
+		{
+			return;
+		}
+		m_executable_versions.put(in_executable, version + 1);
+		String prefix = in_executable + "#" + version + ":";
+		for(Iterator<String> i = m_shared_pages.keySet().iterator(); i.hasNext();)
+		{
+			if(i.next().startsWith(prefix))
+			{
+				i.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Body of the page zeroer thread. Whenever the pool of pre-zeroed frames is
+	 * below its target size and a free frame is available, zero the frame and
+	 * add it to the pool; otherwise sleep until a fault draws on the pool or a
+	 * process frees its frames.
+	 *
+	 * <p>
+	 * The zeroer only runs if <tt>VMKernel.zeroPoolSize</tt> is set.
+	 */
+	private static void zeroFrames()
+	{
+		ThreadedKernel.scheduler.decreasePriority();
+		
+		m_frame_lock.acquire();
+		while(true)
+		{
+			while(m_zeroed_frames.size() >= m_zero_pool_size || m_page_list.isEmpty())
+			{
+				m_zero_condition.sleep();
+			}
+			int p_page_no = m_page_list.removeFirst();
+			Arrays.fill(memory, p_page_no*pageSize, (p_page_no + 1)*pageSize, (byte) 0);
+			Machine.processor().invalidateDecodedPage(p_page_no);
+			m_zeroed_frames.add(p_page_no);
+		}
+	}
+	
 	public static Lock m_page_fault_lock;
-	public static Lock m_swap_lock;
-	public static Condition m_condition;
-	public static Lock m_lock;
-	public static int victim = 0;
+	/**
+	 * Protects the frames: the free lists, the inverted page table, pins, the
+	 * shared pages and the replacement policy, and the page table entries and
+	 * swap slots of every process as pages are mapped and evicted. It is
+	 * never held during I/O.
+	 */
+	public static Lock m_frame_lock;
+	/** Signalled when a frame is unpinned or freed. */
+	public static Condition m_frame_available;
+	/** Signalled when a page being written to swap by another thread is done. */
+	public static Condition m_transit_condition;
 	public static int numOfPinned = 0;
 	public static byte[] memory = Machine.processor().getMemory();
-	public static OpenFile m_swap_file;
+	public static SwapFile m_swap;
+	private static Condition m_pageout_condition;
+	private static int m_pageout_low_water;
+	private static int m_pageout_batch;
+	private static int m_pageout_hand = 0;
+	/** Every process with an address space. */
+	public static LinkedList<VMProcess> m_processes = new LinkedList<VMProcess>();
+	/** Signalled when a suspended process is resumed. */
+	public static Condition m_resume_condition;
+	/** The number of working set samples taken so far. */
+	public static int m_sample = 0;
+	private static int m_sample_interval;
+	private static int m_working_set_window;
+	private static int m_pff_high;
+	private static int m_pff_low;
+	private static int m_suspensions = 0;
+	/** The most pages a sequential page fault fetches ahead. */
+	public static int m_max_fault_around;
+	/** Chooses the page to evict when no frame is free. */
+	public static PageReplacementPolicy m_policy;
+	/** Free frames already filled with zeros, for stack and BSS faults. */
+	public static LinkedList<Integer> m_zeroed_frames = new LinkedList<Integer>();
+	public static Condition m_zero_condition;
+	private static int m_zero_pool_size;
 	public static infoCenter[] m_inverted_table;
-	public static LinkedList<Integer> m_free_swap_list = new LinkedList<Integer>();
-	private static int numOfSwap = 0;
+	/**
+	 * Resident pages of executables that can be mapped by every process
+	 * running the same program, by <tt>sharedPageKey()</tt>.
+	 */
+	public static HashMap<String, Integer> m_shared_pages = new HashMap<String, Integer>();
+	/** The current version of every executable whose pages have been shared. */
+	private static HashMap<String, Integer> m_executable_versions = new HashMap<String, Integer>();
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
 	private static final char dbgVM = 'v';
@@ -1,5 +1,7 @@
 package nachos.vm;
 
+import java.util.Arrays;
+
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -34,6 +36,28 @@ public class VMProcess extends UserProcess
 	public void restoreState() 
 	{
 		super.restoreState();
+		m_thread = KThread.currentThread();
+	}
+
+	/**
+	 * Execute the specified program, remembering its name so that its pages
+	 * can be shared with other processes running the same program.
+	 */
+	public boolean execute(String name, String[] args)
+	{
+		m_executable = name;
+		return super.execute(name, args);
+	}
+
+	/**
+	 * Stop sharing the pages of a program whose file has changed, so that
+	 * processes started from the new file do not map the old pages.
+	 */
+	protected void fileChanged(String name)
+	{
+		VMKernel.m_frame_lock.acquire();
+		VMKernel.executableChanged(name);
+		VMKernel.m_frame_lock.release();
 	}
 
 	/**
@@ -44,20 +68,108 @@ public class VMProcess extends UserProcess
 	 */
 	protected boolean loadSections() 
 	{
-		pageTable = new TranslationEntry[numPages];
+		pageTable = new PageTable(numPages);
+		for(int i=0; i < numPages; ++i)
+		{
+			pageTable.set(i, -1, false, false, false, false);
+		}
+		
+		// index every page by the section it comes from, so that faults
+		// never have to search the executable
+		m_vpn_section = new CoffSection[numPages];
+		m_vpn_spn = new int[numPages];
+		m_vpn_kind = new byte[numPages];
+		m_copy_on_write = new boolean[numPages];
+		m_swap_slot = new int[numPages];
+		m_prefetched = new boolean[numPages];
+		Arrays.fill(m_swap_slot, -1);
 		for(int i=0; i < numPages; ++i)
 		{
-			pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
+			m_vpn_kind[i] = pageStack;
+		}
+		for (int s = 0; s < coff.getNumSections(); s++) 
+		{
+			CoffSection section = coff.getSection(s);
+			byte kind;
+			if(section.isReadOnly() == true)
+			{
+				kind = pageCode;
+			}
+			else if(section.isInitialzed() == true)
+			{
+				kind = pageData;
+			}
+			else
+			{
+				kind = pageBss;
+			}
+			for (int i = 0; i < section.getLength(); i++) 
+			{
+				int vpn = section.getFirstVPN() + i;
+				m_vpn_section[vpn] = section;
+				m_vpn_spn[vpn] = i;
+				m_vpn_kind[vpn] = kind;
+				pageTable.setReadOnly(vpn, section.isReadOnly());
+			}
 		}
+		m_last_referenced = new int[numPages];
+		m_sampled_used = new boolean[numPages];
+		Arrays.fill(m_last_referenced, Integer.MIN_VALUE/2);
+		
+		VMKernel.m_frame_lock.acquire();
+		VMKernel.m_processes.add(this);
+		VMKernel.m_frame_lock.release();
 		return true;
 	}
 
+	/**
+	 * Return what kind of page a virtual page is: one of <tt>pageCode</tt>,
+	 * <tt>pageData</tt>, <tt>pageBss</tt> or <tt>pageStack</tt>. The stack
+	 * kind also covers the page holding the program's arguments.
+	 */
+	public int getPageKind(int vpn)
+	{
+		return m_vpn_kind[vpn];
+	}
+
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() 
 	{
-		super.unloadSections();
+		VMKernel.m_frame_lock.acquire();
+		while(m_pages_in_flight > 0) // being written to swap by another thread
+		{
+			VMKernel.m_transit_condition.sleep();
+		}
+		VMKernel.m_swap.freeAll(getPid());
+		VMKernel.m_processes.remove(this);
+		
+		for(int i=0; i < pageTable.length(); ++i)
+		{
+			demote(i);
+			if(pageTable.isValid(i) == false)
+			{
+				continue;
+			}
+			pageTable.setValid(i, false);
+			infoCenter info = VMKernel.m_inverted_table[pageTable.getPpn(i)];
+			if(info.sharedKey != null)
+			{
+				if(info.removeMapping(this, i)) // still mapped by other processes
+				{
+					continue;
+				}
+				VMKernel.m_shared_pages.remove(info.sharedKey);
+			}
+			info.setOwner(null, -1);
+			VMKernel.m_page_list.add(pageTable.getPpn(i));
+		}
+		
+		// the freed frames can now be zeroed ahead of time
+		VMKernel.m_frame_available.wakeAll();
+		VMKernel.m_zero_condition.wake();
+		VMKernel.m_frame_lock.release();
 	}
 
 	/**
@@ -70,13 +182,35 @@ public class VMProcess extends UserProcess
 	public void handleException(int cause) 
 	{
 		Processor processor = Machine.processor();
+		
+		if(m_suspended) // memory is overcommitted; wait here until resumed
+		{
+			VMKernel.m_frame_lock.acquire();
+			while(m_suspended)
+			{
+				VMKernel.m_resume_condition.sleep();
+			}
+			VMKernel.m_frame_lock.release();
+		}
 
 		switch (cause) 
 		{
 			case Processor.exceptionPageFault:
-				VMKernel.m_lock.acquire();
+				m_page_table_lock.acquire();
 				handlePageFault(processor.readRegister(Processor.regBadVAddr));
-				VMKernel.m_lock.release();
+				m_page_table_lock.release();
+				break;
+			case Processor.exceptionReadOnly:
+				int v_page_no = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+				if(m_copy_on_write[v_page_no] == false)
+				{
+					super.handleException(cause);
+					break;
+				}
+				// retry the store once this process has its own copy
+				m_page_table_lock.acquire();
+				breakCopyOnWrite(v_page_no);
+				m_page_table_lock.release();
 				break;
 			default:
 				super.handleException(cause);
@@ -84,381 +218,600 @@ public class VMProcess extends UserProcess
 		}
 	}
 	
-	public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) 
+	protected int pinPage(int vpn, boolean writing)
 	{
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-		int v_page_no = vaddr / pageSize;
-		if(v_page_no >= numPages || v_page_no < 0)
+		if(writing && pageTable.isReadOnly(vpn) == true && m_copy_on_write[vpn] == false)
 		{
-			return 0;
+			return -1;
 		}
-		if(pageTable[v_page_no].readOnly == true)
+
+		m_page_table_lock.acquire();
+		int p_page_no = -1;
+		while(p_page_no == -1) // another process may evict the page before it is pinned
 		{
-			return 0;
+			if(pageTable.isValid(vpn) == false)
+			{
+				handlePageFault(vpn*pageSize);
+			}
+			if(writing && m_copy_on_write[vpn] == true)
+			{
+				breakCopyOnWrite(vpn);
+			}
+			if(writing && pageTable.isReadOnly(vpn) == true && m_copy_on_write[vpn] == false) // found out on first load
+			{
+				m_page_table_lock.release();
+				return -1;
+			}
+			VMKernel.m_frame_lock.acquire();
+			if(pageTable.isValid(vpn) == true && (writing == false || m_copy_on_write[vpn] == false))
+			{
+				p_page_no = getPpn(vpn);
+				VMKernel.m_inverted_table[p_page_no].pin();
+			}
+			VMKernel.m_frame_lock.release();
 		}
-		
-		VMKernel.m_lock.acquire();
-		if(pageTable[v_page_no].valid == false)
+		m_page_table_lock.release();
+
+		pageTable.setUsed(vpn, true);
+		if(writing)
 		{
-			handlePageFault(vaddr);
+			pageTable.setDirty(vpn, true);
 		}
-		if(VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned == false)
+		return p_page_no;
+	}
+	
+	protected void unpinPage(int vpn)
+	{
+		VMKernel.m_frame_lock.acquire();
+		VMKernel.m_inverted_table[getPpn(vpn)].unpin();
+		VMKernel.m_frame_lock.release();
+	}
+	
+	/**
+	 * Make the page holding a virtual address resident. Must be called with
+	 * this process's page table lock held.
+	 *
+	 * <p>
+	 * When faults arrive in ascending page order, the following pages of the
+	 * same section, or the following swapped-out pages, are brought in by
+	 * the same fault. The number of pages fetched ahead doubles with each
+	 * sequential fault, up to <tt>VMKernel.maxFaultAround</tt>, and halves
+	 * whenever a page fetched ahead is evicted without being used. The page
+	 * that faulted is marked used and pinned while the others are fetched, so
+	 * that they cannot evict it.
+	 */
+	public void handlePageFault(int vaddr)
+	{
+		int v_page_no = vaddr / pageSize;
+		if(v_page_no >= pageTable.length() || v_page_no < 0)
 		{
-			VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = true;
-			++VMKernel.numOfPinned;
+			return;
 		}
-		VMKernel.m_lock.release();
-		
-		int v_offset = vaddr % pageSize;
-		int possible_size = pageSize - v_offset + (numPages - 1 - v_page_no)*pageSize;
-		int actual_length = Math.min(data.length-offset, Math.min(length, possible_size));
-		int writtenBytes = 0;
+		boolean sequential = v_page_no == m_next_fault_vpn;
+		++m_recent_faults;
+		m_last_referenced[v_page_no] = VMKernel.m_sample;
+		boolean from_swap = m_swap_slot[v_page_no] >= 0;
+		CoffSection section = m_vpn_section[v_page_no];
+		pageIn(v_page_no, false);
 		
-		int progress_offset = v_offset;
-		int index = offset;
-		int p_address = pageTable[v_page_no].ppn * pageSize + v_offset;
-		if(p_address < 0 || p_address >= memory.length) // remove it if it is not needed
-		{
-			VMKernel.m_lock.acquire();
-			VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-			--VMKernel.numOfPinned;
-			VMKernel.m_condition.wake();
-			VMKernel.m_lock.release();
-			return 0;
+		if(sequential == false)
+		{
+			m_next_fault_vpn = v_page_no + 1;
+			return;
+		}
+		m_fault_around = Math.min(VMKernel.m_max_fault_around, Math.max(1, m_fault_around*2));
+		// the pages fetched ahead take frames, which must not come from the page that faulted
+		int demand_ppn = -1;
+		VMKernel.m_frame_lock.acquire();
+		if(pageTable.isValid(v_page_no) == true)
+		{
+			pageTable.setUsed(v_page_no, true);
+			demand_ppn = getPpn(v_page_no);
+			VMKernel.m_inverted_table[demand_ppn].pin();
 		}
-		pageTable[v_page_no].dirty = true;
-		pageTable[v_page_no].used = true;
-		while(writtenBytes < actual_length)
+		VMKernel.m_frame_lock.release();
+		int vpn = v_page_no + 1;
+		for(; vpn <= v_page_no + m_fault_around && vpn < pageTable.length(); ++vpn)
 		{
-			memory[p_address] = data[index];
-			++p_address;
-			++progress_offset;
-			++writtenBytes;
-			++index;
-			if(pageSize == progress_offset)
+			boolean same_source = from_swap ? m_swap_slot[vpn] >= 0
+					: m_swap_slot[vpn] == -1 && section != null && m_vpn_section[vpn] == section;
+			if(same_source == false || pageTable.isValid(vpn) == true || pageIn(vpn, true) == false)
 			{
-				VMKernel.m_lock.acquire();
-				VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-				--VMKernel.numOfPinned;
-				VMKernel.m_condition.wake();
-				VMKernel.m_lock.release();
-				if(writtenBytes < actual_length)
-				{
-					++v_page_no;
-					if(v_page_no >= numPages || pageTable[v_page_no].readOnly == true)
-					{
-						return writtenBytes;
-					}
-					
-					VMKernel.m_lock.acquire();
-					if(pageTable[v_page_no].valid == false)
-					{
-						handlePageFault(v_page_no*pageSize);
-					}
-					if(VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned == false)
-					{
-						VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = true;
-						++VMKernel.numOfPinned;
-					}
-					VMKernel.m_lock.release();
-					
-					p_address = pageTable[v_page_no].ppn * pageSize;
-					progress_offset = 0;
-					pageTable[v_page_no].dirty = true;
-					pageTable[v_page_no].used = true;
-				}
+				break;
 			}
+			m_prefetched[vpn] = true;
+		}
+		m_next_fault_vpn = vpn;
+		if(demand_ppn != -1)
+		{
+			VMKernel.m_frame_lock.acquire();
+			VMKernel.m_inverted_table[demand_ppn].unpin();
+			VMKernel.m_frame_lock.release();
 		}
-		VMKernel.m_lock.acquire();
-		VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-		--VMKernel.numOfPinned;
-		VMKernel.m_condition.wake();
-		VMKernel.m_lock.release();
-		return writtenBytes;
 	}
 	
-	public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) 
+	/**
+	 * Make a virtual page resident. Must be called with this process's page
+	 * table lock held. The frame lock is held only while frames and page
+	 * tables change, not while the page is read, so faults of other processes
+	 * proceed during the read. A page fetched ahead is left unreferenced, and
+	 * is skipped rather than waited for if it is still being evicted.
+	 *
+	 * @return <tt>true</tt> if the page was made resident.
+	 */
+	private boolean pageIn(int v_page_no, boolean prefetch)
 	{
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset + length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-		int v_page_no = vaddr / pageSize;
-		if(v_page_no >= numPages || v_page_no < 0)
+		VMKernel.m_frame_lock.acquire();
+		while(m_swap_slot[v_page_no] == slotInTransit) // still being evicted
 		{
-			return 0;
+			if(prefetch)
+			{
+				VMKernel.m_frame_lock.release();
+				return false;
+			}
+			VMKernel.m_transit_condition.sleep();
 		}
+		if(pageTable.isValid(v_page_no) == true)
+		{
+			VMKernel.m_frame_lock.release();
+			return true;
+		}
+		if(prefetch == false)
+		{
+			++VMKernel.m_policy.numPageFaults;
+		}
+		int slot = m_swap_slot[v_page_no];
+		boolean from_swap = slot >= 0;
+		boolean shareable = from_swap == false && m_executable != null
+				&& (m_vpn_kind[v_page_no] == pageCode || m_vpn_kind[v_page_no] == pageData);
+		String key = shareable ? VMKernel.sharedPageKey(m_executable, m_vpn_section[v_page_no], m_vpn_spn[v_page_no]) : null;
+		if(shareable && VMKernel.m_shared_pages.containsKey(key)) // another process already loaded it
+		{
+			int p_page_no = VMKernel.m_shared_pages.get(key);
+			VMKernel.m_inverted_table[p_page_no].addMapping(this, v_page_no);
+			mapSharedPage(v_page_no, p_page_no);
+			VMKernel.m_frame_lock.release();
+			return true;
+		}
+		if(from_swap == false && m_vpn_kind[v_page_no] == pageBss && mapSuperpage(v_page_no))
+		{
+			VMKernel.m_frame_lock.release();
+			return true;
+		}
+		boolean anonymous = m_vpn_kind[v_page_no] == pageStack || m_vpn_kind[v_page_no] == pageBss;
+		boolean zeroed = false;
+		int p_page_no;
+		if(anonymous && from_swap == false && 0 < VMKernel.m_zeroed_frames.size())
+		{
+			p_page_no = VMKernel.m_zeroed_frames.removeFirst();
+			zeroed = true;
+			VMKernel.m_zero_condition.wake();
+			VMKernel.m_inverted_table[p_page_no].pin();
+			VMKernel.m_inverted_table[p_page_no].setOwner(this, v_page_no);
+		}
+		else
+		{
+			p_page_no = allocateFrame(v_page_no);
+		}
+		m_swap_slot[v_page_no] = -1;
+		VMKernel.m_frame_lock.release();
 		
-		VMKernel.m_lock.acquire();
-		if(pageTable[v_page_no].valid == false)
+		if(from_swap == true) // written before it was evicted
 		{
-			handlePageFault(vaddr);
+			VMKernel.m_swap.swapIn(slot, p_page_no);
 		}
-		if(VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned == false)
+		else if(zeroed == false) // first touch, or a clean page dropped when it was evicted
 		{
-			VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = true;
-			++VMKernel.numOfPinned;
+			loadFromExecutable(v_page_no, p_page_no);
 		}
-		VMKernel.m_lock.release();
 		
-		int v_offset = vaddr % pageSize;
-		int possible_size = pageSize - v_offset + (numPages - 1 -v_page_no)*pageSize;
-		int actual_length = Math.min(data.length-offset, Math.min(length, possible_size));
-		int readBytes = 0;
-		int progress_offset = v_offset;
-		int index = offset;
-		int p_address = pageTable[v_page_no].ppn * pageSize + v_offset;
-		if(p_address < 0 || p_address >= memory.length)
-		{
-			VMKernel.m_lock.acquire();
-			VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-			--VMKernel.numOfPinned;
-			VMKernel.m_condition.wake();
-			VMKernel.m_lock.release();
-			return 0;
+		VMKernel.m_frame_lock.acquire();
+		infoCenter info = VMKernel.m_inverted_table[p_page_no];
+		if(shareable && VMKernel.m_shared_pages.containsKey(key)) // loaded by another process meanwhile
+		{
+			info.setOwner(null, -1);
+			info.unpin();
+			VMKernel.m_page_list.add(p_page_no);
+			p_page_no = VMKernel.m_shared_pages.get(key);
+			VMKernel.m_inverted_table[p_page_no].addMapping(this, v_page_no);
+			mapSharedPage(v_page_no, p_page_no);
+			VMKernel.m_frame_lock.release();
+			return true;
+		}
+		VMKernel.m_policy.pageLoaded(p_page_no);
+		pageTable.set(v_page_no, p_page_no, true, pageTable.isReadOnly(v_page_no),
+				pageTable.isUsed(v_page_no), from_swap);
+		if(shareable)
+		{
+			info.sharedKey = key;
+			VMKernel.m_shared_pages.put(key, p_page_no);
+			mapSharedPage(v_page_no, p_page_no);
 		}
-		pageTable[v_page_no].used = true;
-		while(readBytes < actual_length)
+		if(prefetch)
 		{
-			data[index] = memory[p_address];
-			++p_address;
-			++progress_offset;
-			++readBytes;
-			++index;
-			if(pageSize == progress_offset)
+			pageTable.setUsed(v_page_no, false);
+		}
+		info.unpin();
+		VMKernel.m_frame_lock.release();
+		return true;
+	}
+	
+	/**
+	 * If superpages are enabled, try to map the aligned run of BSS pages
+	 * containing a virtual page with a single superpage, backed by a run of
+	 * free frames that is aligned the same way. Every page of the run must
+	 * belong to the same section and be neither resident nor in swap. Must
+	 * be called with <tt>VMKernel.m_frame_lock</tt> held.
+	 *
+	 * @return <tt>true</tt> if the superpage was mapped.
+	 */
+	private boolean mapSuperpage(int in_vpn)
+	{
+		int count = Machine.processor().getMaxSuperpageSize();
+		int base = in_vpn & -count;
+		if(count == 1 || base + count > pageTable.length())
+		{
+			return false;
+		}
+		for(int vpn = base; vpn < base + count; ++vpn)
+		{
+			if(m_vpn_section[vpn] != m_vpn_section[in_vpn] || pageTable.isValid(vpn) || m_swap_slot[vpn] != -1)
 			{
-				VMKernel.m_lock.acquire();
-				VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-				--VMKernel.numOfPinned;
-				VMKernel.m_condition.wake();
-				VMKernel.m_lock.release();
-				if(readBytes < actual_length)
-				{
-					++v_page_no;
-					if(v_page_no >= numPages)
-					{
-						return readBytes;
-					}
-					
-					VMKernel.m_lock.acquire();
-					if(pageTable[v_page_no].valid == false)
-					{
-						handlePageFault(v_page_no*pageSize);
-					}
-					if(VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned == false)
-					{
-						VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = true;
-						++VMKernel.numOfPinned;
-					}
-					VMKernel.m_lock.release();
-					
-					p_address = pageTable[v_page_no].ppn * pageSize;
-					progress_offset = 0;
-					pageTable[v_page_no].used = true;
-				}
+				return false;
 			}
 		}
-		VMKernel.m_lock.acquire();
-		VMKernel.m_inverted_table[pageTable[v_page_no].ppn].pinned = false;
-		--VMKernel.numOfPinned;
-		VMKernel.m_condition.wake();
-		VMKernel.m_lock.release();
-		return readBytes;
+		int first = VMKernel.allocateFrameRun(count);
+		if(first == -1)
+		{
+			return false;
+		}
+		byte[] memory = Machine.processor().getMemory();
+		Arrays.fill(memory, first*pageSize, (first + count)*pageSize, (byte) 0);
+		TranslationEntry entry = new TranslationEntry(base, first, true, false, false, false);
+		entry.pageCount = count;
+		pageTable.setEntry(entry);
+		for(int i=0; i < count; ++i)
+		{
+			Machine.processor().invalidateDecodedPage(first + i);
+			VMKernel.m_inverted_table[first + i].setOwner(this, base + i);
+			VMKernel.m_policy.pageLoaded(first + i);
+			m_last_referenced[base + i] = VMKernel.m_sample;
+		}
+		return true;
 	}
 	
-	public void handlePageFault(int vaddr)
+	/**
+	 * Split the superpage holding a virtual page, if any, into one entry per
+	 * page, so that its pages can be evicted and cleaned one at a time. Each
+	 * page inherits the superpage's bits.
+	 */
+	private void demote(int in_vpn)
 	{
-		int v_page_no = vaddr / pageSize;
-		if(v_page_no >= pageTable.length || v_page_no < 0)
+		pageTable.demote(in_vpn);
+	}
+	
+	/** Return the physical page a resident virtual page is mapped to. */
+	private int getPpn(int in_vpn)
+	{
+		return pageTable.getPpn(in_vpn);
+	}
+	
+	/**
+	 * Map a virtual page to a frame shared with other processes running the
+	 * same program. Data pages are mapped read-only and copied on the first
+	 * store. Must be called with <tt>VMKernel.m_frame_lock</tt> held.
+	 */
+	private void mapSharedPage(int in_vpn, int in_ppn)
+	{
+		pageTable.set(in_vpn, in_ppn, true, true, pageTable.isUsed(in_vpn),
+				pageTable.isDirty(in_vpn));
+		m_copy_on_write[in_vpn] = m_vpn_kind[in_vpn] == pageData;
+	}
+	
+	/**
+	 * Give this process its own writable copy of a shared data page. If no
+	 * other process maps the frame, it simply becomes private. Must be called
+	 * with this process's page table lock held.
+	 */
+	private void breakCopyOnWrite(int in_vpn)
+	{
+		VMKernel.m_frame_lock.acquire();
+		if(pageTable.isValid(in_vpn) == false || m_copy_on_write[in_vpn] == false)
 		{
-			return;
+			VMKernel.m_frame_lock.release();
+			return; // evicted meanwhile; the retried store faults it back in
 		}
-		int p_page_no;
-		if(0 < VMKernel.m_page_list.size())
+		int shared_ppn = pageTable.getPpn(in_vpn);
+		infoCenter info = VMKernel.m_inverted_table[shared_ppn];
+		if(info.otherProcesses.isEmpty())
 		{
-			p_page_no = VMKernel.m_page_list.removeFirst();
+			VMKernel.m_shared_pages.remove(info.sharedKey);
+			info.sharedKey = null;
 		}
 		else
 		{
-			if(VMKernel.numOfPinned == Machine.processor().getNumPhysPages())
+			info.pin();
+			int p_page_no = allocateFrame(in_vpn);
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, shared_ppn*pageSize, memory, p_page_no*pageSize, pageSize);
+			Machine.processor().invalidateDecodedPage(p_page_no);
+			VMKernel.m_policy.pageLoaded(p_page_no);
+			pageTable.setPpn(in_vpn, p_page_no);
+			boolean still_mapped = info.removeMapping(this, in_vpn);
+			info.unpin();
+			if(still_mapped == false) // the others exited while the frame was allocated
 			{
-				VMKernel.m_condition.sleep();
+				VMKernel.m_shared_pages.remove(info.sharedKey);
+				info.setOwner(null, -1);
+				VMKernel.m_page_list.add(shared_ppn);
 			}
-			p_page_no = VMKernel.clockAlgorithm();
+			VMKernel.m_inverted_table[p_page_no].unpin();
 		}
-		boolean isStack = true;
-		if(VMKernel.m_inverted_table[p_page_no].pinned == false)
-		{
-			VMKernel.m_inverted_table[p_page_no].pinned = true;
-			++VMKernel.numOfPinned;
-		}
-		VMKernel.m_inverted_table[p_page_no].process = this; 
-		VMKernel.m_inverted_table[p_page_no].vpn = v_page_no;
-		if(pageTable[v_page_no].ppn == -1) // the first page fault
+		pageTable.setReadOnly(in_vpn, false);
+		m_copy_on_write[in_vpn] = false;
+		VMKernel.m_frame_lock.release();
+	}
+	
+	/**
+	 * Take a frame for a virtual page of this process, from the free list, the
+	 * pool of zeroed frames, or by evicting a page, waiting while every frame
+	 * is pinned. The frame is returned pinned. Must be called with
+	 * <tt>VMKernel.m_frame_lock</tt> held, which is released while an evicted
+	 * page is written to swap.
+	 */
+	private int allocateFrame(int in_vpn)
+	{
+		int p_page_no;
+		while(true)
 		{
-			for (int s = 0; s < coff.getNumSections(); s++) 
+			if(0 < VMKernel.m_page_list.size())
 			{
-				CoffSection section = coff.getSection(s);
-
-				Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
-
-				for (int i = 0; i < section.getLength(); i++) 
-				{
-					int vpn = section.getFirstVPN() + i;
-					if(vpn == v_page_no)
-					{
-						TranslationEntry trans_entry = pageTable[vpn];
-						trans_entry.readOnly = section.isReadOnly();
-						section.loadPage(i, p_page_no);
-						isStack = false;
-					}
-				}
-			}
-			if(isStack == true) // zero fill
-			{
-				int p_address = p_page_no*pageSize;
-				byte[] memory = Machine.processor().getMemory();
-				for(int i=0; i < pageSize; ++i)
-				{
-					memory[p_address] = 0;
-					++p_address;
-				}
+				p_page_no = VMKernel.m_page_list.removeFirst();
+				VMKernel.m_inverted_table[p_page_no].pin();
+				break;
 			}
-		}
-		else
-		{
-			if(pageTable[v_page_no].readOnly == true)
+			if(0 < VMKernel.m_zeroed_frames.size())
 			{
-				for (int s = 0; s < coff.getNumSections(); s++) 
-				{
-					CoffSection section = coff.getSection(s);
-
-					Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
-
-					for (int i = 0; i < section.getLength(); i++) 
-					{
-						int vpn = section.getFirstVPN() + i;
-						if(vpn == v_page_no)
-						{
-							section.loadPage(i, p_page_no);
-						}
-					}
-				}
+				p_page_no = VMKernel.m_zeroed_frames.removeFirst();
+				VMKernel.m_zero_condition.wake();
+				VMKernel.m_inverted_table[p_page_no].pin();
+				break;
 			}
-			else
+			if(VMKernel.numOfPinned < Machine.processor().getNumPhysPages())
 			{
-				if(pageTable[v_page_no].dirty == true)
-				{
-					VMKernel.m_swap_file.read(pageTable[v_page_no].vpn*pageSize, VMKernel.memory, p_page_no*pageSize, pageSize);
-					VMKernel.m_swap_lock.acquire();
-					VMKernel.m_free_swap_list.add(pageTable[v_page_no].vpn);
-					VMKernel.m_swap_lock.release();
-				}
-				else //readOnly == false and dirty bit == false
-				{
-					for (int s = 0; s < coff.getNumSections(); s++) 
-					{
-						CoffSection section = coff.getSection(s);
-
-						Lib.debug(dbgProcess, "\tinitializing " + section.getName() + " section (" + section.getLength() + " pages)");
-
-						for (int i = 0; i < section.getLength(); i++) 
-						{
-							int vpn = section.getFirstVPN() + i;
-							if(vpn == v_page_no)
-							{
-								section.loadPage(i, p_page_no);
-								isStack = false;
-							}
-						}
-					}
-					if(isStack == true) // zero fill
-					{
-						int p_address = p_page_no*pageSize;
-						byte[] memory = Machine.processor().getMemory();
-						for(int i=0; i < pageSize; ++i)
-						{
-							memory[p_address] = 0;
-							++p_address;
-						}
-					}
-				}
+				p_page_no = VMKernel.evictPage();
+				break;
 			}
+			VMKernel.m_frame_available.sleep();
 		}
-		pageTable[v_page_no].vpn = v_page_no;
-		pageTable[v_page_no].valid = true;
-		pageTable[v_page_no].ppn = p_page_no;
-		VMKernel.m_inverted_table[p_page_no].pinned = false;
-		--VMKernel.numOfPinned;
-		VMKernel.m_condition.wake();
+		VMKernel.m_inverted_table[p_page_no].setOwner(this, in_vpn);
+		VMKernel.wakePageout();
+		return p_page_no;
+	}
+	
+	/**
+	 * Note that a page of this process is being written to swap by another
+	 * thread, so that the process does not free its swap slots until the
+	 * write is done. Must be called with <tt>VMKernel.m_frame_lock</tt> held.
+	 */
+	public void pageOutStarted()
+	{
+		++m_pages_in_flight;
 	}
 	
-	protected int handleExec(int file_vaddr, int argc, int arg_vaddr)
+	public void pageOutFinished()
 	{
-		if(validAddress(file_vaddr) == false || validAddress(arg_vaddr) == false)
+		--m_pages_in_flight;
+		VMKernel.m_transit_condition.wakeAll();
+	}
+	
+	/**
+	 * Fill a physical page with the initial contents of a virtual page: its
+	 * page of the executable, or zeros for a stack page.
+	 */
+	private void loadFromExecutable(int in_vpn, int in_ppn)
+	{
+		CoffSection section = m_vpn_section[in_vpn];
+		if(section != null)
 		{
-			return -1;
+			section.loadPage(m_vpn_spn[in_vpn], in_ppn);
 		}
-		String name = readVirtualMemoryString(file_vaddr, m_max_length);
-		if(name == null || argc < 0)
+		else
 		{
-			return -1;
+			int p_address = in_ppn*pageSize;
+			Arrays.fill(Machine.processor().getMemory(), p_address, p_address + pageSize, (byte) 0);
+			Machine.processor().invalidateDecodedPage(in_ppn);
 		}
-		String file_extension = name.substring(name.length()-5);
-		if(file_extension.equals(".coff") == false)
+	}
+	
+	public void youAreEvicted(int vpn)
+	{
+		demote(vpn);
+		pageTable.setValid(vpn, false);
+		if(m_prefetched[vpn]) // fetched ahead for nothing
 		{
-			return -1;
+			m_prefetched[vpn] = false;
+			if(pageTable.isUsed(vpn) == false)
+			{
+				m_fault_around /= 2;
+			}
 		}
-		String argument_list[] = new String[argc]; 
-		for(int i=0; i < argc; ++i)
+	}
+	
+	public boolean getDirtyBit(int index)
+	{
+		return pageTable.isDirty(index);
+	}
+	
+	public void clearDirtyBit(int index)
+	{
+		demote(index);
+		pageTable.setDirty(index, false);
+	}
+	
+	/**
+	 * Return the swap slot holding a copy of a virtual page, or -1 if there is
+	 * none. A resident page whose copy is current is clean.
+	 */
+	public int getSwapSlot(int index)
+	{
+		return m_swap_slot[index];
+	}
+	
+	public void setSwapSlot(int index, int slot)
+	{
+		m_swap_slot[index] = slot;
+	}
+	
+	/** Whether a virtual page of this process is resident in a frame. */
+	public boolean isMapped(int index, int ppn)
+	{
+		return pageTable.isValid(index) && getPpn(index) == ppn;
+	}
+	
+	public boolean getUsedBit(int index)
+	{
+		return pageTable.isUsed(index) || m_sampled_used[index];
+	}
+	
+	public void setUsedBit(int index, boolean bool)
+	{
+		if(m_prefetched[index] && getUsedBit(index)) // fetched ahead and used
 		{
-			byte arg_addr[] = new byte[4];
-			readVirtualMemory(arg_vaddr+i*4, arg_addr);
-			int vaddr = Lib.bytesToInt(arg_addr,0);
-			if(validAddress(vaddr) == false)
+			m_prefetched[index] = false;
+		}
+		pageTable.setUsed(index, bool);
+		m_sampled_used[index] = bool;
+	}
+	
+	/**
+	 * Sample the pages this process has referenced since the last sample, and
+	 * update its working set estimate and its page fault rate. The used bits
+	 * are cleared so that the next sample sees only new references; the
+	 * replacement policy still sees them through <tt>getUsedBit()</tt>. Must
+	 * be called with <tt>VMKernel.m_frame_lock</tt> held.
+	 *
+	 * @param in_sample the number of this sample.
+	 * @param in_window how many samples a page stays in the working set after
+	 * it was last referenced.
+	 */
+	public void sampleWorkingSet(int in_sample, int in_window)
+	{
+		int working_set = 0;
+		for(int i=0; i < pageTable.length(); ++i)
+		{
+			if(pageTable.isValid(i) && pageTable.isUsed(i))
 			{
-				return -1;
+				m_last_referenced[i] = in_sample;
+				m_sampled_used[i] = true;
+			}
+			if(in_sample - m_last_referenced[i] < in_window)
+			{
+				++working_set;
 			}
-			argument_list[i] = readVirtualMemoryString(vaddr, m_max_length);
 		}
-		UserProcess child_process = new VMProcess(); // modified
-		childProcess new_born = new childProcess(child_process);
-		m_children_list.put(child_process.getPid(), new_born);
-		child_process.setParentProcess(this);
-		Boolean result = child_process.execute(name, argument_list);
-		if(result == false)
+		// cleared afterwards, since every page of a superpage shares one used bit
+		for(int i=0; i < pageTable.length(); ++i)
 		{
-			return -1;
+			pageTable.setUsed(i, false);
 		}
-		return child_process.getPid();
+		m_working_set = working_set;
+		m_fault_rate = m_recent_faults;
+		m_recent_faults = 0;
 	}
 	
-	public void youAreEvicted(int vpn)
+	/** Return the number of pages this process referenced recently. */
+	public int getWorkingSet()
 	{
-		pageTable[vpn].valid = false;
+		return m_working_set;
 	}
 	
-	public boolean getDirtyBit(int index)
+	/** Return the number of page faults taken in the last sample interval. */
+	public int getFaultRate()
 	{
-		return pageTable[index].dirty;
+		return m_fault_rate;
 	}
 	
-	public void setVpn(int index, int swap)
+	/**
+	 * Return the scheduling priority of this process's thread, or 0 if it
+	 * has not run yet.
+	 */
+	public int getPriority()
 	{
-		pageTable[index].vpn = swap;
+		if(m_thread == null)
+		{
+			return 0;
+		}
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getPriority(m_thread);
+		Machine.interrupt().restore(intStatus);
+		return priority;
 	}
 	
-	public boolean getUsedBit(int index)
+	public boolean isSuspended()
 	{
-		return pageTable[index].used;
+		return m_suspended;
 	}
 	
-	public void setUsedBit(int index, boolean bool)
+	/**
+	 * Suspend or resume this process. A suspended process stops the next time
+	 * it enters the kernel, and its pages are marked unreferenced so that
+	 * they are the first to be evicted. Must be called with
+	 * <tt>VMKernel.m_frame_lock</tt> held.
+	 */
+	public void setSuspended(boolean in_suspended)
 	{
-		pageTable[index].used = bool;
+		m_suspended = in_suspended;
+		if(in_suspended)
+		{
+			for(int i=0; i < pageTable.length(); ++i)
+			{
+				setUsedBit(i, false);
+			}
+		}
+		else
+		{
+			VMKernel.m_resume_condition.wakeAll();
+		}
 	}
 	
+	/** The section each virtual page comes from, or null for stack pages. */
+	private CoffSection[] m_vpn_section;
+	/** The page number of each virtual page within its section. */
+	private int[] m_vpn_spn;
+	private byte[] m_vpn_kind;
+	/** Whether each virtual page is a data page still shared read-only. */
+	private boolean[] m_copy_on_write;
+	/**
+	 * The swap slot holding each virtual page, -1 if none, or
+	 * <tt>slotInTransit</tt> while the page is being evicted to swap.
+	 */
+	private int[] m_swap_slot;
+	private int m_pages_in_flight = 0;
+	/** The sample in which each page was last found referenced, or faulted in. */
+	private int[] m_last_referenced;
+	/** Used bits already collected by a working set sample. */
+	private boolean[] m_sampled_used;
+	private int m_working_set = 0;
+	private int m_fault_rate = 0;
+	private int m_recent_faults = 0;
+	private volatile boolean m_suspended = false;
+	private KThread m_thread = null;
+	/** Whether each page was fetched ahead and has not been used since. */
+	private boolean[] m_prefetched;
+	/** The page a fault would be on if the faults so far were sequential. */
+	private int m_next_fault_vpn = -1;
+	/** How many pages the next sequential fault fetches ahead. */
+	private int m_fault_around = 0;
+	/** Serializes faults and page pinning within this process. */
+	private Lock m_page_table_lock = new Lock();
+	/** The name of the executable this process runs. */
+	private String m_executable;
+	
+	public static final int slotInTransit = -2;
+	
+	public static final byte pageCode = 0, pageData = 1, pageBss = 2, pageStack = 3;
+	
 	private static final int pageSize = Processor.pageSize;
 
 	private static final char dbgProcess = 'a';
@@ -0,0 +1,91 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock algorithm it sweeps the frames,
+ * clearing reference bits, but it also remembers when each frame was last
+ * found referenced. A frame unreferenced for longer than <i>tau</i> ticks has
+ * left its process's working set. The hand stops at the first such frame
+ * that is clean; when there is none, it prefers, in order, a clean frame that
+ * is still in a working set, a dirty frame outside every working set, and
+ * finally any unreferenced frame, so that swap writes are avoided whenever
+ * possible.
+ *
+ * <p>
+ * <tt>WSClockPolicy.tau</tt> sets the working-set window, in ticks.
+ */
+public class WSClockPolicy extends PageReplacementPolicy
+{
+	public WSClockPolicy()
+	{
+		m_tau = Config.getInteger("WSClockPolicy.tau", 20000);
+		m_last_used = new long[Machine.processor().getNumPhysPages()];
+	}
+
+	public int findVictim(infoCenter[] in_frames)
+	{
+		int length = in_frames.length;
+		long now = Machine.timer().getTime();
+		while(true)
+		{
+			int clean = -1, dirty_old = -1, dirty = -1;
+			for(int i=0; i < length; ++i)
+			{
+				int frame = m_hand;
+				m_hand = (m_hand + 1) % length;
+				if(in_frames[frame].pinned == true)
+				{
+					continue;
+				}
+				if(in_frames[frame].getRefBit() == true)
+				{
+					in_frames[frame].clearRefBit();
+					m_last_used[frame] = now;
+					continue;
+				}
+				boolean old = now - m_last_used[frame] > m_tau;
+				if(in_frames[frame].isDirty() == false)
+				{
+					if(old)
+					{
+						return frame;
+					}
+					if(clean == -1)
+					{
+						clean = frame;
+					}
+				}
+				else if(old && dirty_old == -1)
+				{
+					dirty_old = frame;
+				}
+				else if(dirty == -1)
+				{
+					dirty = frame;
+				}
+			}
+			int victim = clean != -1 ? clean : dirty_old != -1 ? dirty_old : dirty;
+			if(victim != -1)
+			{
+				return victim;
+			}
+			// every frame was referenced; the next sweep finds them cleared
+		}
+	}
+
+	public void pageLoaded(int in_ppn)
+	{
+		m_last_used[in_ppn] = Machine.timer().getTime();
+	}
+
+	public String getName()
+	{
+		return "WSClock";
+	}
+
+	private int m_hand = 0;
+	private long m_tau;
+	/** The time each frame was last found referenced or loaded. */
+	private long[] m_last_used;
+}
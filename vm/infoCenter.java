@@ -1,16 +1,129 @@
 package nachos.vm;
 
-public class infoCenter 
+import java.util.ArrayList;
+
+public class infoCenter
 {
 	public VMProcess process;
 	public int vpn;
 	public boolean pinned;
+	/** How many times the frame is pinned; it is pinned while this is positive. */
+	public int pinCount;
+	/** The key of this frame in VMKernel.m_shared_pages, or null if the frame is private. */
+	public String sharedKey;
+	/** Every mapping of a shared frame besides (process, vpn). */
+	public ArrayList<VMProcess> otherProcesses = new ArrayList<VMProcess>();
+	public ArrayList<Integer> otherVpns = new ArrayList<Integer>();
 	public boolean getRefBit()
 	{
-		return process.getUsedBit(vpn);
+		if(process == null)
+		{
+			return false;
+		}
+		if(process.getUsedBit(vpn))
+		{
+			return true;
+		}
+		for(int i=0; i < otherProcesses.size(); ++i)
+		{
+			if(otherProcesses.get(i).getUsedBit(otherVpns.get(i)))
+			{
+				return true;
+			}
+		}
+		return false;
 	}
 	public void clearRefBit()
 	{
+		if(process == null)
+		{
+			return;
+		}
 		process.setUsedBit(vpn, false);
+		for(int i=0; i < otherProcesses.size(); ++i)
+		{
+			otherProcesses.get(i).setUsedBit(otherVpns.get(i), false);
+		}
+	}
+	/** Keep the frame from being evicted. Must be called with VMKernel.m_frame_lock held. */
+	public void pin()
+	{
+		if(pinCount++ == 0)
+		{
+			pinned = true;
+			++VMKernel.numOfPinned;
+		}
+	}
+	public void unpin()
+	{
+		if(--pinCount == 0)
+		{
+			pinned = false;
+			--VMKernel.numOfPinned;
+			VMKernel.m_frame_available.wake();
+		}
+	}
+	/** Whether the frame must be written to swap before it is reused. */
+	public boolean isDirty()
+	{
+		return sharedKey == null && process != null && process.getDirtyBit(vpn);
+	}
+	public void addMapping(VMProcess in_process, int in_vpn)
+	{
+		otherProcesses.add(in_process);
+		otherVpns.add(in_vpn);
+	}
+	/**
+	 * Remove one mapping of a shared frame. Returns true if the frame is still
+	 * mapped by some other page.
+	 */
+	public boolean removeMapping(VMProcess in_process, int in_vpn)
+	{
+		if(process == in_process && vpn == in_vpn)
+		{
+			if(otherProcesses.isEmpty())
+			{
+				return false;
+			}
+			process = otherProcesses.remove(otherProcesses.size() - 1);
+			vpn = otherVpns.remove(otherVpns.size() - 1);
+			return true;
+		}
+		for(int i=0; i < otherProcesses.size(); ++i)
+		{
+			if(otherProcesses.get(i) == in_process && otherVpns.get(i) == in_vpn)
+			{
+				otherProcesses.remove(i);
+				otherVpns.remove(i);
+				break;
+			}
+		}
+		return true;
+	}
+	/** Invalidate every mapping of this frame, which is physical page in_ppn. */
+	public void evictAll(int in_ppn)
+	{
+		if(process != null && process.isMapped(vpn, in_ppn))
+		{
+			process.youAreEvicted(vpn);
+		}
+		for(int i=0; i < otherProcesses.size(); ++i)
+		{
+			if(otherProcesses.get(i).isMapped(otherVpns.get(i), in_ppn))
+			{
+				otherProcesses.get(i).youAreEvicted(otherVpns.get(i));
+			}
+		}
+		otherProcesses.clear();
+		otherVpns.clear();
+	}
+	/** Make the frame private to a single new owner. */
+	public void setOwner(VMProcess in_process, int in_vpn)
+	{
+		process = in_process;
+		vpn = in_vpn;
+		sharedKey = null;
+		otherProcesses.clear();
+		otherVpns.clear();
 	}
 }